@@ -2,12 +2,14 @@ package controller;
 
 import model.Status;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.URL;
 import java.util.*;
 
 import javafx.scene.control.*;
 import javafx.collections.*;
+import javafx.application.Platform;
 import javafx.beans.property.SimpleObjectProperty;
 import javafx.collections.transformation.FilteredList;
 import javafx.collections.transformation.SortedList;
@@ -40,7 +42,7 @@ public class ClientController implements Initializable {
     @FXML
     private Label labelTalkingWIth;
     @FXML
-    private TextArea txtAreaMessages;
+    private ListView<Message> listViewMessages;
     @FXML
     private TextArea txtAreaNewMessage;
     @FXML
@@ -50,12 +52,17 @@ public class ClientController implements Initializable {
     @FXML
     private ComboBox comboBoxStatus;
 
-    private final ObservableList<Conversation> friendList = FXCollections.observableList(new ArrayList<>());
-    private final ObservableList<ClientUser> userList = FXCollections.observableList(new ArrayList<>());
+    //The lists are changed through the roster, which finds users by name
+    private final Roster roster = new Roster();
+    private final ObservableList<Conversation> friendList = roster.getConversations();
+    private final ObservableList<ClientUser> userList = roster.getUsers();
 
     private Client client;
     private Conversation activeConversation;
     private boolean removing = false;
+    private boolean paging = false;
+    private boolean refreshPending = false;
+    private File historyDir;
 
     /**
      * Initializes the controller class.
@@ -67,10 +74,35 @@ public class ClientController implements Initializable {
     }
 
     private void initTabel() {
+        //Only the visible messages get a cell, and the cells are reused when scrolling
+        listViewMessages.setCellFactory(list -> new ListCell<Message>() {
+            {
+                setWrapText(true);
+                prefWidthProperty().bind(list.widthProperty().subtract(20));
+                setMaxWidth(Control.USE_PREF_SIZE);
+            }
+
+            @Override
+            protected void updateItem(Message msg, boolean empty) {
+                super.updateItem(msg, empty);
+                setText(empty || msg == null ? null : msg.toString());
+                //The first or last message in memory is shown, read more from the history
+                if (empty || paging || activeConversation == null) {
+                    return;
+                }
+                if (getIndex() == 0 && activeConversation.hasOlder()) {
+                    paging = true;
+                    Platform.runLater(() -> pageMessages(true));
+                } else if (getIndex() == getListView().getItems().size() - 1 && !activeConversation.isAtLatest()) {
+                    paging = true;
+                    Platform.runLater(() -> pageMessages(false));
+                }
+            }
+        });
         columnUsername.setCellValueFactory((TableColumn.CellDataFeatures<ClientUser, String> param)
                 -> new SimpleObjectProperty<>(param.getValue().getUserName()));
         columnFriends.setCellValueFactory((TableColumn.CellDataFeatures<Conversation, String> param)
-                -> new SimpleObjectProperty<>(param.getValue().getTalkingWithUsername()));
+                -> new SimpleObjectProperty<>((param.getValue().isRoom() ? "#" : "") + param.getValue().getTalkingWithUsername()));
 
         columnUsernameStatus.setCellValueFactory((TableColumn.CellDataFeatures<ClientUser, Status> param)
                 -> new SimpleObjectProperty<>(param.getValue().getStatus()));
@@ -140,11 +172,11 @@ public class ClientController implements Initializable {
 
     private void sendRequest() {
         if (!removing) {
-            int idx = tvUsers.getSelectionModel().getFocusedIndex();
-            if (idx == -1) {
+            //The table shows a filtered and sorted view of the user list
+            ClientUser user = (ClientUser) tvUsers.getSelectionModel().getSelectedItem();
+            if (user == null) {
                 return;
             }
-            ClientUser user = userList.get(idx);
             if (user.getStatus() == Status.ONLINE) {
                 Alert alert = new Alert(AlertType.CONFIRMATION);
                 alert.setTitle("Confirm Connection");
@@ -195,36 +227,97 @@ public class ClientController implements Initializable {
      * @see model.client.Conversation
      */
     public void addMessageToConversation(String userName, Message msg) {
-        for (Conversation cnv : friendList) {
-            if (cnv.getTalkingWithUsername().equals(userName)) {
-                cnv.addMessage(msg);
-                if (activeConversation == cnv) {
-                    appendMsgToConversation();
-                }
-                return;
-            }
+        Conversation cnv = roster.getConversation(userName);
+        if (cnv == null) {
+            //A message stored by the server while this user was offline
+            cnv = openConversation(userName);
+        }
+        cnv.addMessage(msg);
+        if (activeConversation == cnv) {
+            scrollToLatest();
         }
-
-        showAlertBoxError("Error occurred",
-                "This should not happen. Server should have control over this.");
     }
 
     /**
-     * Clears the list of user and inserts all registered users.
+     * Stores a message posted to a chat room.
      *
-     * @param restOfArray String list of users separated with ;. Each user must have two fields, the first with uname the second status.
+     * @param room The name of the room
+     * @param msg  Message, with the username of the member that posted it
      */
-    public void updateUserList(String restOfArray) {
-        if (restOfArray.equals("")) {
+    public void addRoomMessage(String room, Message msg) {
+        Conversation cnv = roster.getRoom(room);
+        if (cnv == null) {
+            //Posted while this user was leaving the room
             return;
         }
-        userList.clear();
-        String[] users = restOfArray.split(";");
-        for (int i = 0; i < users.length; i += 2) {
-            userList.add(new ClientUser(users[i], users[i + 1]));
+        cnv.addMessage(msg);
+        if (activeConversation == cnv) {
+            scrollToLatest();
         }
     }
 
+    /**
+     * Adds the room to the conversation list when the server has made this user a member.
+     *
+     * @param room The name of the room
+     */
+    public void roomJoined(String room) {
+        Conversation cnv = roster.getRoom(room);
+        if (cnv == null) {
+            cnv = newRoomConversation(room);
+            removing = true;
+            roster.addConversation(cnv);
+            removing = false;
+        }
+        setActiveConversation(cnv);
+    }
+
+    /**
+     * Removes the room from the conversation list when this user has left it.
+     *
+     * @param room The name of the room
+     */
+    public void roomLeft(String room) {
+        removing = true;
+        Conversation cnv = roster.removeRoom(room);
+        if (cnv != null) {
+            cnv.close();
+        }
+        if (activeConversation == cnv) {
+            setActiveConversation(friendList.isEmpty() ? null : friendList.get(0));
+        }
+        removing = false;
+    }
+
+    /**
+     * Adds a conversation with a user that is not connected, for messages
+     * sent while this user was offline.
+     */
+    private Conversation openConversation(String userName) {
+        removing = true;
+        ClientUser user = roster.removeUser(userName);
+        if (user == null) {
+            user = new ClientUser(userName, "0");
+        }
+        Conversation cnv = newConversation(user);
+        roster.addConversation(cnv);
+        removing = false;
+        if (activeConversation == null) {
+            setActiveConversation(cnv);
+        }
+        return cnv;
+    }
+
+    /**
+     * Clears the list of user and inserts all registered users.
+     *
+     * @param users All registered users, parsed and indexed by the {@link Client client}.
+     */
+    public void updateUserList(Roster.UserList users) {
+        //Users with a conversation are in the friend list, and are left out
+        roster.setUsers(users);
+    }
+
     /**
      * Shows alert box, with input error.
      *
@@ -241,8 +334,43 @@ public class ClientController implements Initializable {
      * @param status   THe user is changed to this status.
      */
     public void updateStatus(String username, String status) {
-        ClientUser user = new ClientUser(username, status);
-        Conversation con = new Conversation(user);
+        if (applyStatus(username, status)) {
+            requestRefresh();
+        }
+    }
+
+    /**
+     * Updates the status of several users, and refreshes the lists once.
+     *
+     * @param changes Username to new status, "+", "-" or "0".
+     */
+    public void updateStatuses(Map<String, String> changes) {
+        boolean changed = false;
+        for (Map.Entry<String, String> change : changes.entrySet()) {
+            changed |= applyStatus(change.getKey(), change.getValue());
+        }
+        if (changed) {
+            requestRefresh();
+        }
+    }
+
+    /**
+     * Refreshes the tables once after the updates handled in this pulse,
+     * however many updates asked for it.
+     */
+    private void requestRefresh() {
+        if (refreshPending) {
+            return;
+        }
+        refreshPending = true;
+        Platform.runLater(() -> {
+            refreshPending = false;
+            tvUsers.refresh();
+            tvFriends.refresh();
+        });
+    }
+
+    private boolean applyStatus(String username, String status) {
         Status newStatus;
 
         switch (status) {
@@ -257,23 +385,24 @@ public class ClientController implements Initializable {
                 break;
             default:
                 showError("Your client may be outdated.");
-                return;
+                return false;
         }
 
-        if (userList.contains(user)) {
-            userList.get(userList.indexOf(user)).setStatus(newStatus);
-        } else if (friendList.contains(con)) {
-            if (newStatus == Status.OFFLINE) {
-                moveFromFriendsToUser(username, true);
-                userList.get(userList.size() - 1).setStatus(newStatus);
-            } else {
-                friendList.get(friendList.indexOf(con)).getClientUser().setStatus(newStatus);
-            }
-        } else {
-            userList.add(user);
+        ClientUser user = roster.getUser(username);
+        if (user != null) {
+            user.setStatus(newStatus);
+            return true;
+        }
+        Conversation con = roster.getConversation(username);
+        if (con == null) {
+            roster.addUser(new ClientUser(username, status));
+            return true;
         }
-        tvUsers.refresh();
-        tvFriends.refresh();
+        if (newStatus == Status.OFFLINE) {
+            moveFromFriendsToUser(username, true);
+        }
+        con.getClientUser().setStatus(newStatus);
+        return true;
     }
 
     /**
@@ -311,13 +440,9 @@ public class ClientController implements Initializable {
      */
     public void moveFromUsersToFriends(String username, boolean showAlert) {
         removing = true;
-        for (int i = 0; i < userList.size(); i++) {
-            if (userList.get(i).getUserName().equals(username)) {
-                friendList.add(new Conversation(userList.get(i)));
-                userList.remove(i);
-
-                break;
-            }
+        ClientUser user = roster.removeUser(username);
+        if (user != null) {
+            roster.addConversation(newConversation(user));
         }
         if (friendList.size() > 0) {
             setActiveConversation(friendList.get(friendList.size() - 1));
@@ -342,11 +467,10 @@ public class ClientController implements Initializable {
      */
     public void moveFromFriendsToUser(String username, boolean showAlert) {
         removing = true;
-        for (int i = 0; i < friendList.size(); i++) {
-            if (friendList.get(i).getTalkingWithUsername().equals(username)) {
-                userList.add(friendList.remove(i).getClientUser());
-                break;
-            }
+        Conversation cnv = roster.removeConversation(username);
+        if (cnv != null) {
+            cnv.close();
+            roster.addUser(cnv.getClientUser());
         }
         if (friendList.size() > 0) {
             setActiveConversation(friendList.get(0));
@@ -385,42 +509,107 @@ public class ClientController implements Initializable {
     void setClient(Client client) {
         this.client = client;
         try {
+            //Shows the list from the last login, the server then only sends what changed
+            if (historyDir != null) {
+                Roster.UserList saved = client.useUserListCache(historyDir);
+                if (saved != null) {
+                    updateUserList(saved);
+                }
+            }
             client.getUserList();
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
+    /**
+     * Creates a conversation that saves its messages in the local history.
+     */
+    private Conversation newConversation(ClientUser user) {
+        if (historyDir != null) {
+            try {
+                return new Conversation(user, new MessageHistory(historyDir, user.getUserName()));
+            } catch (IOException e) {
+                System.err.println("Could not open history of " + user.getUserName() + ": " + e.getMessage());
+            }
+        }
+        return new Conversation(user);
+    }
+
+    /**
+     * Creates the conversation of a room, that saves its messages in the local history.
+     */
+    private Conversation newRoomConversation(String room) {
+        if (historyDir != null) {
+            try {
+                return Conversation.room(room, new MessageHistory(historyDir, room, true));
+            } catch (IOException e) {
+                System.err.println("Could not open history of room " + room + ": " + e.getMessage());
+            }
+        }
+        return Conversation.room(room, null);
+    }
+
     private void setActiveConversation(Conversation conv) {
+        if (activeConversation != null && activeConversation != conv) {
+            //Only the latest messages are kept for conversations not shown
+            activeConversation.showLatest();
+        }
         if (conv != null) {
             activeConversation = conv;
-            labelTalkingWIth.setText("Talking with: " + conv.getTalkingWithUsername());
-            appendMsgToConversation();
+            conv.showLatest();
+            labelTalkingWIth.setText((conv.isRoom() ? "Room: " : "Talking with: ") + conv.getTalkingWithUsername());
+            //The list view shows the messages of the conversation, nothing is copied
+            listViewMessages.setItems(conv.getMessages());
+            scrollToLatest();
         } else {
             activeConversation = null;
             labelTalkingWIth.setText("Talking with:");
-            txtAreaMessages.clear();
+            listViewMessages.setItems(FXCollections.observableArrayList());
 
         }
     }
 
-    private void appendMsgToConversation() {
+    /**
+     * Moves the window of the active conversation when the user scrolls to the
+     * first or last message in memory, and keeps the same message in view.
+     */
+    private void pageMessages(boolean older) {
+        paging = false;
+        if (activeConversation == null) {
+            return;
+        }
+        if (older) {
+            int added = activeConversation.loadOlder(Conversation.WINDOW);
+            if (added > 0) {
+                listViewMessages.scrollTo(added);
+            }
+        } else {
+            int last = listViewMessages.getItems().size() - 1;
+            int removed = activeConversation.loadNewer(Conversation.WINDOW);
+            if (removed > 0) {
+                listViewMessages.scrollTo(Math.max(0, last - removed));
+            }
+        }
+    }
 
-        txtAreaMessages.clear();
-        for (Message msg : activeConversation.getMessages()) {
-            txtAreaMessages.appendText(msg.toString().replace("&#92", "\n").replace("&#59", ";"));
-            txtAreaMessages.appendText("\n");
+    private void scrollToLatest() {
+        int size = listViewMessages.getItems().size();
+        if (size > 0) {
+            listViewMessages.scrollTo(size - 1);
         }
     }
 
     /**
      * Writes text to GUI label, located to the left.
-     * Writes your username.
+     * Writes your username. Conversations opened after this are saved in the
+     * history of this username.
      *
      * @param username The username bound to this client.
      */
     public void setYourUnameLabel(String username) {
         labelLeftStatus.setText("Your username: " + username);
+        historyDir = MessageHistory.directoryOf(username);
     }
 
     @FXML
@@ -428,9 +617,14 @@ public class ClientController implements Initializable {
         try {
             if (activeConversation != null) {
                 String msg = txtAreaNewMessage.getText();
+                activeConversation.showLatest();
                 activeConversation.addMessage(new Message("Me", msg));
-                appendMsgToConversation();
-                client.sendMsg(activeConversation.getTalkingWithUsername(), msg.replace("\n", "&#92").replace(";", "&#59"));
+                scrollToLatest();
+                if (activeConversation.isRoom()) {
+                    client.postToRoom(activeConversation.getTalkingWithUsername(), msg);
+                } else {
+                    client.sendMsg(activeConversation.getTalkingWithUsername(), msg);
+                }
                 txtAreaNewMessage.clear();
             }
         } catch (IOException ex) {
@@ -441,7 +635,10 @@ public class ClientController implements Initializable {
     @FXML
     private void handleDisconnectFromUser() {
         try {
-            if (activeConversation != null) {
+            if (activeConversation != null && activeConversation.isRoom()) {
+                //The room is removed when the server answers
+                client.leaveRoom(activeConversation.getTalkingWithUsername());
+            } else if (activeConversation != null) {
                 String username = activeConversation.getTalkingWithUsername();
                 moveFromFriendsToUser(username, false);
                 client.disconnectChat(username);
@@ -451,6 +648,22 @@ public class ClientController implements Initializable {
         }
     }
 
+    @FXML
+    private void handleJoinRoom() {
+        TextInputDialog dialog = new TextInputDialog();
+        dialog.setTitle("Join room");
+        dialog.setHeaderText("Everyone in a room gets the messages posted to it.");
+        dialog.setContentText("Room name:");
+        Optional<String> room = dialog.showAndWait();
+        if (room.isPresent() && !room.get().trim().isEmpty()) {
+            try {
+                client.joinRoom(room.get().trim());
+            } catch (IOException ex) {
+                showAlertIOException(ex);
+            }
+        }
+    }
+
     @FXML
     private void buttonPressed(KeyEvent e) {
         if (e.isShiftDown() && e.getCode().toString().equals("ENTER")) {
@@ -89,8 +89,8 @@ public class LoginClientController implements Initializable {
      * Gets call by the {@link model.Client#parseCommand(java.lang.String) client class}.
      */
     public void loginSuccess() {
-	cController.setClient(client);
 	cController.setYourUnameLabel(uname.getText());
+	cController.setClient(client);
 	clientStage.show();
 	clientStage.setOnCloseRequest(event -> {
 	    try {
@@ -0,0 +1,98 @@
+package controller;
+
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import model.Server;
+import model.ServerConfig;
+import model.ServerListener;
+
+/**
+ * Starts the server without a window, and without loading JavaFX.
+ * The settings are read from a properties file and the command line, with the
+ * names used by {@link ServerConfig#fromProperties(java.util.Properties) ServerConfig}:
+ * <pre>
+ * java controller.MainHeadlessServer --config=server.properties --port=5000 --engine=NIO
+ * </pre>
+ * Settings on the command line replace the ones in the file. The server runs
+ * until the process is stopped.
+ *
+ * @author Member(1-2-3-4)
+ */
+public class MainHeadlessServer {
+
+    /**
+     * @param args the command line arguments, "--config=file" and "--setting=value"
+     */
+    public static void main(String[] args) {
+	ServerConfig config;
+	try {
+	    config = ServerConfig.fromProperties(readSettings(args));
+	} catch (IOException | IllegalArgumentException e) {
+	    System.err.println(e.getMessage());
+	    System.err.println("Usage: MainHeadlessServer [--config=file] [--port=n] [--engine=BLOCKING|VIRTUAL|NIO] [--loadUsers=true] ...");
+	    System.exit(2);
+	    return;
+	}
+	Server server;
+	try {
+	    server = new Server(new ConsoleListener(), config);
+	} catch (IOException e) {
+	    System.err.println("Could not start server:\n" + e.toString());
+	    System.exit(1);
+	    return;
+	}
+	System.out.println("Server is running on port " + server.getPort() + ", engine " + config.getEngine());
+
+	CountDownLatch stopped = new CountDownLatch(1);
+	Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+	    server.stop();
+	    stopped.countDown();
+	}));
+	try {
+	    //Sessions may run on daemon threads, the main thread keeps the process alive
+	    stopped.await();
+	} catch (InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	}
+    }
+
+    private static Properties readSettings(String[] args) throws IOException {
+	Properties file = new Properties();
+	Properties props = new Properties();
+	for (String arg : args) {
+	    if (!arg.startsWith("--") || arg.indexOf('=') < 0) {
+		throw new IllegalArgumentException("Bad argument: " + arg);
+	    }
+	    String key = arg.substring(2, arg.indexOf('='));
+	    String value = arg.substring(arg.indexOf('=') + 1);
+	    if (key.equals("config")) {
+		try (Reader in = new FileReader(value)) {
+		    file.load(in);
+		}
+	    } else {
+		props.setProperty(key, value);
+	    }
+	}
+	for (String key : file.stringPropertyNames()) {
+	    if (!props.containsKey(key)) {
+		props.setProperty(key, file.getProperty(key));
+	    }
+	}
+	return props;
+    }
+
+    /**
+     * Writes warnings to the terminal. Loading and connections are already
+     * logged by the server.
+     */
+    private static class ConsoleListener implements ServerListener {
+
+	@Override
+	public void warning(String message) {
+	    System.err.println("WARNING: " + message);
+	}
+    }
+}
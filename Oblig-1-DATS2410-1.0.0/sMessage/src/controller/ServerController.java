@@ -9,7 +9,10 @@ import java.net.InetAddress;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.Comparator;
+import java.util.List;
 import java.util.ResourceBundle;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
 import javafx.application.Platform;
 import javafx.beans.property.SimpleObjectProperty;
 import javafx.beans.value.ObservableValue;
@@ -26,15 +29,22 @@ import javafx.scene.control.TextField;
 import javafx.scene.input.MouseEvent;
 import javafx.scene.paint.Color;
 import model.Server;
+import model.ServerConfig;
+import model.ServerEngine;
+import model.ServerListener;
 import model.Status;
 import model.User;
+import model.store.JournalUserStore;
 
 /**
  * Controller for the Server screen.
+ * Listens to the {@link Server server}. The events come from the server threads,
+ * they are collected and shown by one update on the JavaFX thread, so a login
+ * storm or loading many users gives a few table updates instead of one per event.
  *
  * @author Member(1-2-3-4)
  */
-public class ServerController implements Initializable {
+public class ServerController implements Initializable, ServerListener {
 
     @FXML
     private Label ipLabel;
@@ -51,6 +61,8 @@ public class ServerController implements Initializable {
     @FXML
     private CheckBox chboxLoadUserFromSave;
     @FXML
+    private ComboBox<ServerEngine> comboBoxEngine;
+    @FXML
     private TextField txtFieldPortManual;
     @FXML
     private Button btnToogleServerStatus;
@@ -66,6 +78,9 @@ public class ServerController implements Initializable {
     private Server server;
     private boolean serverRunning = false;
     private final ObservableList<User> userList = FXCollections.observableList(new ArrayList<>());
+    private final ConcurrentLinkedQueue<List<User>> newUsers = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean updatePending = new AtomicBoolean(false);
+    private volatile String loadStatus = null;
 
     @Override
     public void initialize(URL url, ResourceBundle rb) {
@@ -75,7 +90,7 @@ public class ServerController implements Initializable {
 
 	initFXMLNodes();
 
-	File file = new File("usernames.txt");
+	File file = new ServerConfig().getUserStoreDir();
 	labelSaveFileLoc.setText("Location: " + file.getAbsolutePath());
 	labelSaveFileLoc.setWrapText(true);
 
@@ -132,6 +147,9 @@ public class ServerController implements Initializable {
 	});
 
 	txtFieldPortManual.setTextFormatter(formater);
+
+	comboBoxEngine.getItems().addAll(ServerEngine.values());
+	comboBoxEngine.getSelectionModel().select(ServerEngine.BLOCKING);
     }
 
     private void drawServerStatus() {
@@ -157,13 +175,59 @@ public class ServerController implements Initializable {
 	});
     }
 
+    @Override
+    public void warning(String message) {
+	printWarning(message);
+    }
+
+    @Override
+    public void usersAdded(List<User> users) {
+	newUsers.add(users);
+	requestUpdate();
+    }
+
+    @Override
+    public void statusChanged(User user) {
+	requestUpdate();
+    }
+
+    @Override
+    public void loadProgress(long loaded, long total, boolean done) {
+	if (done) {
+	    loadStatus = null;
+	} else {
+	    long percent = total > 0 ? Math.min(100, loaded * 100 / total) : 100;
+	    loadStatus = "loading users " + percent + "%";
+	}
+	requestUpdate();
+    }
+
     /**
-     * Adds new user to the list of users.
-     *
-     * @param user User to add.
+     * Schedules an update of the screen, unless one is waiting already.
      */
-    public void addNewUser(User user) {
-	userList.add(user);
+    private void requestUpdate() {
+	if (updatePending.compareAndSet(false, true)) {
+	    Platform.runLater(this::update);
+	}
+    }
+
+    /**
+     * Shows every event since the last update. Runs on the JavaFX thread.
+     */
+    private void update() {
+	updatePending.set(false);
+	List<User> added = new ArrayList<>();
+	List<User> batch;
+	while ((batch = newUsers.poll()) != null) {
+	    added.addAll(batch);
+	}
+	if (!serverRunning) {
+	    return;
+	}
+	userList.addAll(added);
+	String load = loadStatus;
+	labelServerStatus.setText(load == null ? "Server is running" : "Server is running, " + load);
+	tableViewUsers.refresh();
     }
 
     @FXML
@@ -179,15 +243,17 @@ public class ServerController implements Initializable {
 	    portLabel.getScene().getWindow().setOnCloseRequest(null);
 	    server.stop();
 	    server = null;
+	    newUsers.clear();
+	    loadStatus = null;
 	} else {
 	    try {
-		boolean loadUsers = chboxLoadUserFromSave.isSelected();
-		if (chboxPortAutomatic.isSelected()) {
-		    server = new Server(this, 0, loadUsers);
-		} else {
-		    server = new Server(this, Integer.parseInt(txtFieldPortManual.getText()), loadUsers);
-
+		ServerConfig config = new ServerConfig()
+			.setLoadUsers(chboxLoadUserFromSave.isSelected())
+			.setEngine(comboBoxEngine.getValue());
+		if (!chboxPortAutomatic.isSelected()) {
+		    config.setPort(Integer.parseInt(txtFieldPortManual.getText()));
 		}
+		server = new Server(this, config);
 		serverRunning = true;
 		labelServerStatus.setText("Server is running");
 		btnToogleServerStatus.setText("Turn off server");
@@ -209,6 +275,7 @@ public class ServerController implements Initializable {
 
 	}
 	chboxPortAutomatic.setDisable(serverRunning);
+	comboBoxEngine.setDisable(serverRunning);
 	if (!chboxPortAutomatic.isSelected()) {
 	    txtFieldPortManual.setDisable(serverRunning);
 	}
@@ -219,6 +286,18 @@ public class ServerController implements Initializable {
     @FXML
     private void handleClearSaveFile() {
 
+	try {
+	    if (server != null) {
+		server.clearSavedUsers();
+	    } else {
+		try (JournalUserStore store = new JournalUserStore(new ServerConfig().getUserStoreDir(), null)) {
+		    store.clear();
+		}
+	    }
+	} catch (IOException e) {
+	    System.err.println("Could not clear saved users:\n" + e.toString());
+	}
+	//The old text file is cleared too, so it is not imported again
 	File file = new File("usernames.txt");
 	try (PrintWriter out
 		= new PrintWriter(
@@ -229,11 +308,4 @@ public class ServerController implements Initializable {
 	    System.err.println("Could clear file:\n" + e.toString());
 	}
     }
-
-    /**
-     * Refreshes the TableView. The TableView listing all users status.
-     */
-    public void updateStatus() {
-	tableViewUsers.refresh();
-    }
 }
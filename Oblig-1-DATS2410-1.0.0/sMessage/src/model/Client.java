@@ -6,28 +6,68 @@ import controller.LoginClientController;
 import java.io.*;
 import java.net.Socket;
 import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
 import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 import javafx.application.Platform;
 import javafx.scene.control.Alert;
+import model.client.ClientUser;
+import model.client.FxDispatcher;
 import model.client.Message;
+import model.client.Roster;
+import model.client.UserListCache;
+import model.protocol.Frame;
+import model.protocol.FrameCodec;
+import model.protocol.FrameCompressor;
+import model.protocol.FrameDecoder;
+import model.protocol.Protocol;
 
 /**
  * Client class for communicating with a {@link Server server}.
+ * Starts with a HELLO handshake, and uses SMP version 2 if the server supports it.
+ * Old servers do not answer HELLO, the client then stays on version 1.
+ * Large frames are compressed if the server agrees in its answer to HELLO.
+ * The client answers PING from the server, so the server knows the connection is alive.
  * @author Member(1-2-3-4)
  */
 public class Client {
 
+    /**
+     * How long to wait for the answer to HELLO before falling back to version 1.
+     */
+    private static final int HELLO_TIMEOUT = 2000;
+    /**
+     * How many times a login turned away by a busy server is sent again.
+     */
+    private static final int MAX_AUTH_RETRIES = 5;
 
     private final Socket clientsocket;
-    private final BufferedWriter outToServer;
-    private final BufferedReader inFromServer;
+    private final OutputStream outToServer;
+    private final InputStream inFromServer;
+    private final FrameDecoder decoder = new FrameDecoder(Protocol.VERSION_1);
+    //Only set if the server agreed to compression
+    private FrameCompressor compressor;
+    private final List<Frame> receivedBeforeHello = new ArrayList<>();
+    //Frames are parsed on the receiving thread, only the changes to the view run on the JavaFX thread
+    private final FxDispatcher<Runnable> dispatcher = new FxDispatcher<>(Runnable::run);
+    private int version = Protocol.VERSION_1;
+    private volatile String userListVersion = "-";
+    //The user list saved at the last login, null until the username is known
+    private volatile UserListCache userListCache;
+    private final String server;
+    //The last LOGIN or REGUSER, sent again if the server is busy
+    private volatile Frame lastAuth;
+    private volatile int authRetries = 0;
     private final ClientController clientController;
     private final LoginClientController loginController;
     /**
      * Boolean that determents if a user gets the server shutdown error message or not.
      */
-    public boolean loggedin = false;
+    public volatile boolean loggedin = false;
 
     /**
      * Constructor for the client class.
@@ -41,12 +81,58 @@ public class Client {
     public Client(LoginClientController loginController, ClientController clientController, String ip, int port) throws IOException {
         this.clientController = clientController;
         this.loginController = loginController;
+        this.server = ip + ":" + port;
         clientsocket = new Socket(ip, port);
-        outToServer = new BufferedWriter(new PrintWriter(clientsocket.getOutputStream()));
-        inFromServer = new BufferedReader(new InputStreamReader(clientsocket.getInputStream()));
+        outToServer = new BufferedOutputStream(clientsocket.getOutputStream());
+        inFromServer = clientsocket.getInputStream();
+        hello();
         receiveMessages();
     }
 
+    /**
+     * Sends HELLO and waits a short while for the answer. Runs before the
+     * receiving thread is started.
+     */
+    private void hello() throws IOException {
+        sendCommandToServer(Command.HELLO, Integer.toString(Protocol.HIGHEST_VERSION),
+                Protocol.CAP_PRESENCE, Protocol.CAP_DEFLATE, Protocol.CAP_PING);
+        clientsocket.setSoTimeout(HELLO_TIMEOUT);
+        byte[] buf = new byte[1024];
+        try {
+            while (version == Protocol.VERSION_1 && receivedBeforeHello.isEmpty()) {
+                int n = inFromServer.read(buf);
+                if (n == -1) {
+                    return;
+                }
+                decoder.feed(buf, 0, n, frame -> {
+                    if (frame.getCommand() == Command.HELLO && version == Protocol.VERSION_1) {
+                        version = Protocol.negotiate(frame.arg(0));
+                        decoder.setVersion(version);
+                        if (version == Protocol.VERSION_2 && hasCapability(frame, Protocol.CAP_DEFLATE)) {
+                            compressor = new FrameCompressor(Protocol.COMPRESS_THRESHOLD, null);
+                            decoder.setCompressor(compressor);
+                        }
+                    } else {
+                        receivedBeforeHello.add(frame);
+                    }
+                });
+            }
+        } catch (SocketTimeoutException e) {
+            System.out.println("No answer to HELLO, using SMP version 1");
+        } finally {
+            clientsocket.setSoTimeout(0);
+        }
+    }
+
+    private static boolean hasCapability(Frame hello, String capability) {
+        for (int i = 1; i < hello.size(); i++) {
+            if (hello.arg(i).equals(capability)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     /**
      * Sends a status update to the server.
      * @param status The new status.
@@ -54,26 +140,20 @@ public class Client {
      */
     public void sendStatusUpdate(Status status) throws IOException {
         String newStatus = status == Status.ONLINE ? "+" : "-";
-        sendCommandToServer("TYPE 0", Command.STATUSUPDATE, newStatus);
+        sendCommandToServer(Command.STATUSUPDATE, newStatus);
     }
 
     private void receiveMessages() {
 
         Thread th = new Thread(() -> {
-            String input;
+            byte[] buf = new byte[8192];
+            int n;
             try {
-                while ((input = inFromServer.readLine()) != null) {
-                    
-                    final String finalInput = input;
-                    //The parsing and actions should be done on the JavaFX thread
-                    Platform.runLater(() -> {
-                        try {
-                            parseCommand(finalInput);
-                        } catch (IOException e) {
-                            e.printStackTrace();
-                        }
-                    });
-
+                for (Frame frame : receivedBeforeHello) {
+                    dispatch(frame);
+                }
+                while ((n = inFromServer.read(buf)) != -1) {
+                    decoder.feed(buf, 0, n, this::dispatch);
                 }
                 if (loggedin) {
 		    shutdown();
@@ -105,7 +185,7 @@ public class Client {
                     });
                 }
 
-            } catch (IOException e) {
+            } catch (IOException | IllegalArgumentException e) {
                 e.printStackTrace();
             }
         });
@@ -113,13 +193,26 @@ public class Client {
         th.start();
     }
 
+    private void dispatch(Frame frame) {
+        Runnable action;
+        try {
+            action = parseCommand(frame);
+        } catch (IllegalArgumentException e) {
+            e.printStackTrace();
+            return;
+        }
+        if (action != null) {
+            dispatcher.submit(action);
+        }
+    }
+
     /**
      * Asks the server to connect to the user userID.
      * @param userID is the username of the user you want to connect to.
      * @throws IOException if an I/O error occurs.
      */
     public void connectChat(String userID) throws IOException {
-        sendCommandToServer("TYPE 0", Command.CONNECT, userID);
+        sendCommandToServer(Command.CONNECT, userID);
     }
 
     /**
@@ -128,7 +221,7 @@ public class Client {
      */
     public void disconnectServer() throws IOException {
         System.out.println("Loging off and shuting down socket.");
-        sendCommandToServer("TYPE 0", Command.LOGOFF);
+        sendCommandToServer(Command.LOGOFF);
         new Thread(() -> {
             try {
                 Thread.sleep(1000);
@@ -160,15 +253,30 @@ public class Client {
      * @throws IOException if an I/O error occurs.
      */
     public void disconnectChat(String userID) throws IOException {
-        sendCommandToServer("TYPE 0", Command.DISCONNECT, userID);
+        sendCommandToServer(Command.DISCONNECT, userID);
+    }
+
+    /**
+     * Reads the user list saved at the last login to this server, so
+     * {@link #getUserList()} only asks for the changes since then.
+     * @param dir is the directory with the histories of the user.
+     * @return the saved users, or null if there are none.
+     */
+    public Roster.UserList useUserListCache(File dir) {
+        UserListCache cache = new UserListCache(dir, server);
+        userListCache = cache;
+        userListVersion = cache.getVersion();
+        return cache.getUsers();
     }
 
     /**
-     * Asks the {@link Server server} for a complete list of all the users.
+     * Asks the {@link Server server} for the user list. The whole list is sent
+     * if there is no saved list, or the server does not know its version,
+     * otherwise only the changes since the last answer.
      * @throws IOException if a I/O error occurs.
      */
     public void getUserList() throws IOException {
-        sendCommandToServer("TYPE 0", Command.GETUSERS);
+        sendCommandToServer(Command.GETUSERS, userListVersion);
     }
 
     /**
@@ -178,7 +286,7 @@ public class Client {
      * @throws IOException If a I/O error occurs.
      */
     public void regNewUser(String uname, String passord) throws IOException {
-        sendCommandToServer("TYPE 0", Command.REGUSER, uname, new String(Base64.getEncoder().encode(passord.getBytes())));
+        authenticate(Frame.command(Command.REGUSER, uname, new String(Base64.getEncoder().encode(passord.getBytes()))));
     }
 
     /**
@@ -188,7 +296,45 @@ public class Client {
      * @throws IOException If an I/O error occurs
      */
     public void login(String uname, String passord) throws IOException {
-        sendCommandToServer("TYPE 0", Command.LOGIN, uname, new String(Base64.getEncoder().encode(passord.getBytes())));
+        authenticate(Frame.command(Command.LOGIN, uname, new String(Base64.getEncoder().encode(passord.getBytes()))));
+    }
+
+    private void authenticate(Frame frame) throws IOException {
+        lastAuth = frame;
+        authRetries = 0;
+        send(frame);
+    }
+
+    /**
+     * Sends the last login again after the wait the server asked for, unless
+     * it has been tried too many times. Called on the receiving thread.
+     * @param retryAfter The wait in milliseconds, from LOGINFAIL.
+     * @return true if the login will be sent again.
+     */
+    private boolean retryAuth(String retryAfter) {
+        Frame frame = lastAuth;
+        long millis;
+        try {
+            millis = Long.parseLong(retryAfter);
+        } catch (NumberFormatException e) {
+            return false;
+        }
+        if (frame == null || authRetries >= MAX_AUTH_RETRIES) {
+            return false;
+        }
+        authRetries++;
+        System.out.println("Server busy, logging in again in " + millis + " ms");
+        Thread th = new Thread(() -> {
+            try {
+                Thread.sleep(millis);
+                send(frame);
+            } catch (InterruptedException | IOException e) {
+                System.err.println("Could not log in again: " + e.getMessage());
+            }
+        });
+        th.setDaemon(true);
+        th.start();
+        return true;
     }
 
     /**
@@ -198,7 +344,36 @@ public class Client {
      * @throws IOException If an I/O error occurs.
      */
     public void sendMsg(String receiverID, String msg) throws IOException {
-        sendCommandToServer("TYPE 1", receiverID, msg);
+        send(Frame.chat(receiverID, msg));
+    }
+
+    /**
+     * Joins a chat room, the room is created if it does not exist. The server
+     * answers with JOINROOM when the user is a member.
+     * @param room The name of the room.
+     * @throws IOException If an I/O error occurs.
+     */
+    public void joinRoom(String room) throws IOException {
+        sendCommandToServer(Command.JOINROOM, room);
+    }
+
+    /**
+     * Leaves a chat room. The server answers with LEAVEROOM.
+     * @param room The name of the room.
+     * @throws IOException If an I/O error occurs.
+     */
+    public void leaveRoom(String room) throws IOException {
+        sendCommandToServer(Command.LEAVEROOM, room);
+    }
+
+    /**
+     * Sends a message to every other member of a room, with one frame.
+     * @param room The name of the room.
+     * @param msg The message to be sent.
+     * @throws IOException If an I/O error occurs.
+     */
+    public void postToRoom(String room, String msg) throws IOException {
+        sendCommandToServer(Command.ROOMPOST, room, msg);
     }
 
     /**
@@ -208,87 +383,145 @@ public class Client {
      * @throws IOException if an I/O error occurs.
      */
     public void sendRespons(String username, String respons) throws IOException {
-        sendCommandToServer("TYPE 0", Command.RESPONSE, username, respons.toUpperCase());
+        sendCommandToServer(Command.RESPONSE, username, respons.toUpperCase());
     }
 
-    private void sendCommandToServer(String... lines) throws IOException {
-
-        for (int i = 0; i < lines.length - 1; i++) {
-            outToServer.write(lines[i]);
-            outToServer.write(";");
-        }
-        outToServer.write(lines[lines.length - 1]);
-        outToServer.newLine();
+    /**
+     * Encodes, compresses if agreed with the server, and writes one frame.
+     * Synchronized since both the JavaFX thread and background threads send.
+     */
+    private synchronized void send(Frame frame) throws IOException {
+        byte[] bytes = FrameCodec.encode(frame, version);
+        outToServer.write(compressor != null ? compressor.compress(bytes) : bytes);
         outToServer.flush();
     }
 
-    private void sendCommandToServer(String type, Command command, String... lines) throws IOException {
-        String[] newCommand = new String[lines.length + 2];
-        newCommand[0] = type;
-        newCommand[1] = command.toString();
-        System.arraycopy(lines, 0, newCommand, 2, lines.length);
-        sendCommandToServer(newCommand);
+    private void sendCommandToServer(Command command, String... lines) throws IOException {
+        send(Frame.command(command, lines));
     }
 
-    private void parseCommand(String cmd) throws IOException {
-        String[] sub = cmd.split(";");
-        System.out.println(cmd);
-        if (sub[0].equals("TYPE 0")) {
-            switch (sub[1]) {
-                case "CONNECT":
-                    clientController.connectRequest(restOfArray(sub, 2));
-                    break;
-                case "RESPONSE":
-                    if (sub[3].toUpperCase().equals("YES")) {
-                        clientController.moveFromUsersToFriends(sub[2], true);
-                    } else {
-                        clientController.negativeResponse(sub[2]);
-                    }
-                    break;
-                case "DISCONNECT":
-                    clientController.moveFromFriendsToUser(restOfArray(sub, 2), true);
-                    break;
-                case "USERLIST":
-                    clientController.updateUserList(restOfArray(sub, 2));
-                    break;
-                case "LOGINFAIL":
-                    loginController.loginFailed(sub[2]);
-                    break;
-                case "LOGINSUCCESS":
-                    loggedin = true;
-                    loginController.loginSuccess();
-                    break;
-                case "STATUSUPDATE":
-                    clientController.updateStatus(sub[2], sub[3]);
-                    break;
-                case "ERROR":
-                    clientController.showError(restOfArray(sub, 2));
-                    break;
-                case "REGUSERFAIL":
-                    loginController.regUserFailed();
-                    break;
-                default:
-                    throw new IllegalArgumentException("Bad protocol");
-            }
-        } else if (sub[0].equals("TYPE 1")) {
-            String from = sub[1];
-
-            Message msg = new Message(from, restOfArray(sub, 2));
-            clientController.addMessageToConversation(from, msg);
+    private static Map<String, String> pairs(Frame frame, int from) {
+        Map<String, String> changes = new LinkedHashMap<>();
+        for (int i = from; i + 1 < frame.size(); i += 2) {
+            changes.put(frame.arg(i), frame.arg(i + 1));
+        }
+        return changes;
+    }
 
-        } else {
-            throw new IllegalArgumentException("Bad protocol");
+    /**
+     * Builds the user list from pairs of username and status, or returns null
+     * if there are no users.
+     */
+    private static Roster.UserList users(Frame frame, int from) {
+        List<ClientUser> users = new ArrayList<>(Math.max(0, (frame.size() - from) / 2));
+        for (int i = from; i + 1 < frame.size(); i += 2) {
+            users.add(new ClientUser(frame.arg(i), frame.arg(i + 1)));
         }
+        return users.isEmpty() ? null : Roster.prepareUsers(users);
     }
 
-    private String restOfArray(String[] sub, int from) {
-        StringBuilder sb = new StringBuilder();
-        for (int i = from; i < sub.length; i++) {
-            sb.append(sub[i]);
-            if (i != sub.length - 1) {
-                sb.append(";");
+    /**
+     * Parses a frame on the receiving thread.
+     * @return the change to make on the JavaFX thread, or null if there is none.
+     */
+    private Runnable parseCommand(Frame frame) {
+        System.out.println(frame);
+        if (frame.isChat()) {
+            String from = frame.arg(0);
+
+            Message msg = new Message(from, frame.arg(1));
+            return () -> clientController.addMessageToConversation(from, msg);
+        }
+        if (frame.getCommand() == null) {
+            throw new IllegalArgumentException("Bad protocol");
+        }
+        switch (frame.getCommand()) {
+            case CONNECT: {
+                String from = frame.join(0);
+                return () -> clientController.connectRequest(from);
+            }
+            case RESPONSE: {
+                String from = frame.arg(0);
+                if (frame.arg(1).toUpperCase().equals("YES")) {
+                    return () -> clientController.moveFromUsersToFriends(from, true);
+                }
+                return () -> clientController.negativeResponse(from);
+            }
+            case DISCONNECT: {
+                String from = frame.join(0);
+                return () -> clientController.moveFromFriendsToUser(from, true);
+            }
+            case USERLIST: {
+                Roster.UserList users = users(frame, 0);
+                return users == null ? null : () -> clientController.updateUserList(users);
+            }
+            case USERDELTA: {
+                userListVersion = frame.arg(0);
+                UserListCache cache = userListCache;
+                if (frame.arg(1).equals("FULL")) {
+                    if (cache != null) {
+                        cache.replace(userListVersion, pairs(frame, 2));
+                    }
+                    Roster.UserList users = users(frame, 2);
+                    return users == null ? null : () -> clientController.updateUserList(users);
+                }
+                Map<String, String> changes = pairs(frame, 2);
+                if (cache != null) {
+                    cache.apply(userListVersion, changes);
+                }
+                return () -> clientController.updateStatuses(changes);
+            }
+            case LOGINFAIL: {
+                String reason = frame.arg(0);
+                //A busy server adds how long to wait before trying again
+                if (frame.size() > 1 && retryAuth(frame.arg(1))) {
+                    return null;
+                }
+                return () -> loginController.loginFailed(reason);
+            }
+            case LOGINSUCCESS:
+                loggedin = true;
+                return loginController::loginSuccess;
+            case STATUSUPDATE: {
+                String uname = frame.arg(0);
+                String status = frame.arg(1);
+                return () -> clientController.updateStatus(uname, status);
             }
+            case PRESENCE: {
+                Map<String, String> changes = pairs(frame, 0);
+                return () -> clientController.updateStatuses(changes);
+            }
+            case ERROR: {
+                String error = frame.join(0);
+                return () -> clientController.showError(error);
+            }
+            case REGUSERFAIL:
+                return loginController::regUserFailed;
+            case JOINROOM: {
+                String room = frame.join(0);
+                return () -> clientController.roomJoined(room);
+            }
+            case LEAVEROOM: {
+                String room = frame.join(0);
+                return () -> clientController.roomLeft(room);
+            }
+            case ROOMMSG: {
+                String room = frame.arg(0);
+                Message msg = new Message(frame.arg(1), frame.join(2));
+                return () -> clientController.addRoomMessage(room, msg);
+            }
+            case PING:
+                //Answered at once, the server closes connections that stay silent
+                try {
+                    sendCommandToServer(Command.PONG);
+                } catch (IOException e) {
+                    System.err.println("Could not answer PING: " + e.getMessage());
+                }
+                return null;
+            case PONG:
+                return null;
+            default:
+                throw new IllegalArgumentException("Bad protocol");
         }
-        return sb.toString();
     }
 }
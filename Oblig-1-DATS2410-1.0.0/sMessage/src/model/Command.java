@@ -2,6 +2,7 @@ package model;
 
 /**
  * List of legal commands in Simple Messaging Protocol (SMP).
+ * See {@link model.protocol.Protocol Protocol} for how they are sent.
  *
  * @author Member(1-2-3-4)
  */
@@ -24,9 +25,10 @@ public enum Command {
      */
     LOGIN,
     /**
-     * This command is only sent from server. Parameters: the error message.
-     * This command is sent if something went wrong with login. E.x. wrong
-     * username, wrong password, etc.
+     * This command is only sent from server. Parameters: the error message,
+     * and when the server is too busy, the milliseconds to wait before trying again.
+     * This command is sent if something went wrong with login or registration.
+     * E.x. wrong username, wrong password, etc.
      */
     LOGINFAIL,
     /**
@@ -74,8 +76,10 @@ public enum Command {
      */
     STATUSUPDATE,
     /**
-     * This command is only sent from client. Parameters: non Request the server
-     * to respond with a “USERLIST”
+     * This command is only sent from client. Parameters: non, or [version].
+     * Without parameters the server responds with a “USERLIST”. With a version
+     * from an earlier “USERDELTA”, or “-” if the client has none, the server responds
+     * with a “USERDELTA”.
      */
     GETUSERS,
     /**
@@ -90,5 +94,69 @@ public enum Command {
      * error message to the client if something went wrong with previous
      * command.
      */
-    ERROR
+    ERROR,
+    /**
+     * This command is sent from client and server. From client: Parameters:
+     * highestVersion, [capability]... Sent right after connecting, always as
+     * SMP version 1. From server: Parameters: version, [capability]... The
+     * chosen protocol version and the capabilities both sides support. After
+     * the server answer both sides use the chosen version. Old servers do not
+     * answer, and the client stays on version 1.
+     * NB: New commands must be added at the end, SMP version 2 sends the
+     * position in this list.
+     */
+    HELLO,
+    /**
+     * This command is only sent from server, to clients that sent the
+     * “PRESENCE” capability in “HELLO”. Parameters: [Username, newStatus]...
+     * All status changes since the last “PRESENCE”, at most one per user,
+     * excluding your username. Replaces “STATUSUPDATE” from the server.
+     */
+    PRESENCE,
+    /**
+     * This command is only sent from server, as the answer to “GETUSERS” with a
+     * version parameter. Parameters: version, “FULL” or “DELTA”, [Username,
+     * status]... With “FULL” the list replaces the whole user list, like
+     * “USERLIST”. With “DELTA” the list has only the users that were added or
+     * changed status since the version in “GETUSERS”. The client sends the
+     * version from this command in its next “GETUSERS”.
+     */
+    USERDELTA,
+    /**
+     * This command is sent from client and server. From client: Parameters:
+     * room. Joins the chat room, the room is created if it does not exist.
+     * From server: Parameters: room. Sent to the user that joined, after the
+     * user is a member.
+     */
+    JOINROOM,
+    /**
+     * This command is sent from client and server. From client: Parameters:
+     * room. Leaves the chat room. From server: Parameters: room. Sent to the
+     * user that left. A user leaves all rooms when logging off.
+     */
+    LEAVEROOM,
+    /**
+     * This command is only sent from client. Parameters: room, message. Sends
+     * the message to every other member of the room, as a “ROOMMSG”. The user
+     * must be a member of the room. In version 1 the message is escaped, old
+     * clients that do not escape “;” split it, and the server joins the rest
+     * of the parameters back together.
+     */
+    ROOMPOST,
+    /**
+     * This command is only sent from server. Parameters: room, sender,
+     * message. A message posted to a room the user is a member of.
+     */
+    ROOMMSG,
+    /**
+     * This command is sent from client and server. Parameters: non. Asks the
+     * other side to answer with “PONG”. The server sends it to users that have
+     * sent nothing for a while, and only if they asked for it in HELLO.
+     */
+    PING,
+    /**
+     * This command is sent from client and server. Parameters: non. The answer
+     * to “PING”.
+     */
+    PONG
 }
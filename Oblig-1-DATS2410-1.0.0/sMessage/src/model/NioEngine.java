@@ -0,0 +1,343 @@
+package model;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import model.protocol.Frame;
+
+/**
+ * Non-blocking network engine for the {@link Server server}.
+ * One acceptor thread hands new connections round robin to a fixed set of event loops.
+ * Every event loop owns a {@link Selector} and reads, decodes and handles the frames
+ * of all its sessions, so the number of threads does not grow with the number of users.<br>
+ * Frames are decoded and handled by the same {@link Session} code as the blocking engine.
+ *
+ * @author Member(1-2-3-4)
+ */
+final class NioEngine {
+
+    private final Server server;
+    private final ServerSocketChannel channel;
+    private final EventLoop[] loops;
+    private int nextLoop = 0;
+
+    /**
+     * Creates the engine. Nothing is started before {@link #start() start} is called.
+     *
+     * @param server The server owning the sessions
+     * @param channel A bound server socket channel
+     * @param eventLoops Number of event loop threads
+     * @throws IOException If a selector could not be opened
+     */
+    NioEngine(Server server, ServerSocketChannel channel, int eventLoops) throws IOException {
+	this.server = server;
+	this.channel = channel;
+	loops = new EventLoop[eventLoops];
+	for (int i = 0; i < eventLoops; i++) {
+	    loops[i] = new EventLoop(i);
+	}
+    }
+
+    /**
+     * Starts the event loops and the thread accepting new connections.
+     */
+    void start() {
+	for (EventLoop loop : loops) {
+	    loop.thread.start();
+	}
+	Thread acceptor = new Thread(this::acceptLoop, "nio-acceptor");
+	acceptor.start();
+    }
+
+    /**
+     * Stops the event loops and closes every connection.
+     */
+    void stop() {
+	for (EventLoop loop : loops) {
+	    loop.selector.wakeup();
+	}
+    }
+
+    private void acceptLoop() {
+	while (server.isRunning()) {
+	    try {
+		SocketChannel ch = channel.accept();
+		ch.configureBlocking(false);
+		EventLoop loop = loops[nextLoop];
+		nextLoop = (nextLoop + 1) % loops.length;
+		NioSession session = new NioSession(ch, loop);
+		server.getSessions().add(session);
+		session.watchIdle();
+		loop.register(session);
+	    } catch (AsynchronousCloseException e) {
+		return;
+	    } catch (IOException e) {
+		if (server.isRunning()) {
+		    server.getListener().warning("An IOException appeared, check your internet connection and try again.\n" + e.toString());
+		}
+	    }
+	}
+    }
+
+    /**
+     * One selector thread. Every session is bound to a single loop, and only that loop reads from
+     * and writes to the channel of the session.
+     */
+    private final class EventLoop implements Runnable {
+
+	private final Selector selector;
+	private final Thread thread;
+	private final ByteBuffer readBuffer = ByteBuffer.allocate(64 * 1024);
+	private final Queue<NioSession> newSessions = new ConcurrentLinkedQueue<>();
+	private final Queue<NioSession> pendingFlushes = new ConcurrentLinkedQueue<>();
+	private final Queue<NioSession> pendingCloses = new ConcurrentLinkedQueue<>();
+
+	EventLoop(int id) throws IOException {
+	    selector = Selector.open();
+	    thread = new Thread(this, "nio-loop-" + id);
+	}
+
+	void register(NioSession session) {
+	    newSessions.add(session);
+	    selector.wakeup();
+	}
+
+	boolean inLoop() {
+	    return Thread.currentThread() == thread;
+	}
+
+	/**
+	 * Asks for the outbound queue of a session to be written. The session is
+	 * queued once no matter how many frames are added, and written after the
+	 * current loop iteration, so a burst of frames becomes one write.
+	 */
+	void requestFlush(NioSession session) {
+	    if (session.flushQueued.compareAndSet(false, true)) {
+		pendingFlushes.add(session);
+		if (!inLoop()) {
+		    selector.wakeup();
+		}
+	    }
+	}
+
+	void requestClose(NioSession session) {
+	    if (inLoop()) {
+		session.closeNow();
+	    } else {
+		pendingCloses.add(session);
+		selector.wakeup();
+	    }
+	}
+
+	@Override
+	public void run() {
+	    try {
+		while (server.isRunning()) {
+		    selector.select();
+		    runPending();
+		    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+		    while (keys.hasNext()) {
+			SelectionKey key = keys.next();
+			keys.remove();
+			NioSession session = (NioSession) key.attachment();
+			if (!key.isValid()) {
+			    session.closeNow();
+			    continue;
+			}
+			if (key.isReadable()) {
+			    session.read(readBuffer);
+			}
+			if (key.isValid() && key.isWritable()) {
+			    session.flush();
+			}
+		    }
+		    runFlushes();
+		}
+	    } catch (IOException | ClosedSelectorException e) {
+		System.err.println(e.getMessage());
+	    } finally {
+		for (SelectionKey key : selector.keys()) {
+		    ((NioSession) key.attachment()).closeNow();
+		}
+		try {
+		    selector.close();
+		} catch (IOException ignored) {
+		}
+	    }
+	}
+
+	private void runPending() {
+	    NioSession session;
+	    while ((session = newSessions.poll()) != null) {
+		try {
+		    session.key = session.channel.register(selector, SelectionKey.OP_READ, session);
+		    session.flush();
+		} catch (IOException e) {
+		    session.closeNow();
+		}
+	    }
+	    runFlushes();
+	    while ((session = pendingCloses.poll()) != null) {
+		session.closeNow();
+	    }
+	}
+
+	private void runFlushes() {
+	    NioSession session;
+	    while ((session = pendingFlushes.poll()) != null) {
+		session.flushQueued.set(false);
+		session.flush();
+	    }
+	}
+    }
+
+    /**
+     * A session served by an {@link EventLoop}. The event loop is the single reader and writer,
+     * it takes frames from the outbound queue whenever the channel accepts more bytes.
+     * Queued frames are written together with one gathering write.
+     */
+    private final class NioSession extends Session {
+
+	private final SocketChannel channel;
+	private final EventLoop loop;
+	private final String address;
+	private final ByteBuffer[] batch = new ByteBuffer[64];
+	private final Frame[] batchFrames = new Frame[batch.length];
+	private int batchStart = 0;
+	private int batchEnd = 0;
+	final AtomicBoolean flushQueued = new AtomicBoolean();
+	private SelectionKey key;
+	private volatile boolean closed = false;
+
+	NioSession(SocketChannel channel, EventLoop loop) throws IOException {
+	    super(NioEngine.this.server);
+	    this.channel = channel;
+	    this.loop = loop;
+	    InetSocketAddress remote = (InetSocketAddress) channel.getRemoteAddress();
+	    address = remote.getAddress().getHostAddress() + ":" + remote.getPort();
+	}
+
+	/**
+	 * Reads what is available and hands it to the frame decoder.
+	 */
+	void read(ByteBuffer buffer) {
+	    buffer.clear();
+	    int n;
+	    try {
+		n = channel.read(buffer);
+	    } catch (IOException e) {
+		System.err.println(e.getMessage());
+		closeNow();
+		return;
+	    }
+	    if (n < 0) {
+		closeNow();
+		return;
+	    }
+	    try {
+		bytesReceived(buffer.array(), 0, n);
+	    } catch (IOException | RuntimeException e) {
+		System.err.println("Bad protocol from " + address + ": " + e);
+		closeNow();
+	    }
+	}
+
+	/**
+	 * Writes queued frames until the queue is empty or the socket buffer is full. Only called
+	 * from the event loop.
+	 */
+	void flush() {
+	    if (closed || key == null) {
+		return;
+	    }
+	    try {
+		while (true) {
+		    if (batchStart == batchEnd && !fillBatch()) {
+			break;
+		    }
+		    long written = channel.write(batch, batchStart, batchEnd - batchStart);
+		    server.getStats().writeCall(written);
+		    while (batchStart < batchEnd && !batch[batchStart].hasRemaining()) {
+			batch[batchStart] = null;
+			written(batchFrames[batchStart]);
+			batchFrames[batchStart++] = null;
+		    }
+		    if (batchStart < batchEnd) {
+			key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+			return;
+		    }
+		}
+		if (key.isValid()) {
+		    key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+		}
+	    } catch (IOException e) {
+		System.err.println(e.getMessage());
+		closeNow();
+	    }
+	}
+
+	/**
+	 * Takes frames from the outbound queue until the batch is full or has
+	 * reached the flush threshold.
+	 *
+	 * @return false if the queue was empty
+	 */
+	private boolean fillBatch() {
+	    batchStart = 0;
+	    batchEnd = 0;
+	    int bytes = 0;
+	    Frame frame;
+	    while (batchEnd < batch.length && bytes < server.getConfig().getFlushBytes()
+		    && (frame = outbound.poll()) != null) {
+		batch[batchEnd] = ByteBuffer.wrap(encode(frame));
+		batchFrames[batchEnd] = frame;
+		bytes += batch[batchEnd].remaining();
+		batchEnd++;
+	    }
+	    server.getStats().framesWritten(batchEnd);
+	    return batchEnd > 0;
+	}
+
+	void closeNow() {
+	    if (closed) {
+		return;
+	    }
+	    closed = true;
+	    outbound.close();
+	    if (key != null) {
+		key.cancel();
+	    }
+	    try {
+		channel.close();
+	    } catch (IOException ignored) {
+	    }
+	    server.getSessions().remove(uname, this);
+	    connectionClosed();
+	}
+
+	@Override
+	void outboundReady() {
+	    loop.requestFlush(this);
+	}
+
+	@Override
+	void close() {
+	    loop.requestClose(this);
+	}
+
+	@Override
+	String remoteAddress() {
+	    return address;
+	}
+    }
+}
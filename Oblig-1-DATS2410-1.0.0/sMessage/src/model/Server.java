@@ -1,132 +1,366 @@
 package model;
 
-import controller.ServerController;
-
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
-import java.net.InetAddress;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
+import java.nio.channels.ServerSocketChannel;
 import java.util.ArrayList;
-
-import javafx.application.Platform;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import model.protocol.Frame;
+import model.protocol.Protocol;
+import model.server.AuthStage;
+import model.server.FanoutExecutor;
+import model.server.PresenceBatcher;
+import model.server.RoomTable;
+import model.server.ServerStats;
+import model.server.SessionTable;
+import model.server.TimingWheel;
+import model.server.UserDirectory;
+import model.store.JournalUserStore;
+import model.store.MessageLog;
+import model.store.UserStore;
 
 /**
  * Model for server.
- * Contains the SocketInstanse class. This is used for every connected user and every user has its own thread.
+ * Stores all users and there status, and the {@link Session sessions} of the connected users.
+ * The network side is handled by one of two {@link ServerEngine engines}:<br>
+ * BLOCKING uses the SocketInstanse class. This is used for every connected user and every user has its own thread.
+ * VIRTUAL runs the same SocketInstanse code, but every user gets a virtual thread instead of a platform thread.
  * SocketInstanse listens for user input and can connect to other users through lists in the server class.<br>
- * The Server object stores all users and there status.<br>
+ * NIO uses the {@link NioEngine}, where a few event loop threads serve every connected user.<br>
+ * The server does not depend on JavaFX, a UI gets its events through a {@link ServerListener}.<br>
  * <b>NB:</b> Every message is printed to the terminal this is only for testing, and we are aware of the privacy problem. 
  * 
  * @author Member(1-2-3-4)
  */
 public final class Server {
 
-    private final ArrayList<User> userList = new ArrayList<>();
-    private final ArrayList<SocketInstanse> onlineClients = new ArrayList<>();
+    /**
+     * The idle timeout is split in this many ticks of the idle timer, a silent
+     * connection is closed at most one tick late.
+     */
+    static final int IDLE_TICKS = 64;
+
+    private final UserDirectory users = new UserDirectory();
+    private final SessionTable<Session> sessions = new SessionTable<>();
+    private final RoomTable<Session> rooms = new RoomTable<>();
+    private final FanoutExecutor fanout;
+    private final AuthStage authStage;
+    private TimingWheel idleWheel;
+    private final ServerStats stats = new ServerStats();
+    private PresenceBatcher presence;
     private ServerSocket server;
-    private boolean running = true;
-    private ServerController serverController;
+    private NioEngine nioEngine;
+    private ExecutorService sessionExecutor;
+    private final UserStore store;
+    private final MessageLog messages;
+    private final Set<String> delivering = ConcurrentHashMap.newKeySet();
+    private UserLoader loader;
+    private volatile boolean running = true;
+    private final ServerListener listener;
+    private final ServerConfig config;
 
     /**
-     * Constructs the server object.
+     * Constructs the server object on the blocking engine.
      * Starts the thread listening for connecting users.
-     * @param serverController related {@link ServerController controller}.
+     * @param listener Gets the events of the server, like the admin screen.
      * @param port Server port number.
-     * @param loadUsers If saved users should be loaded from the "usernames.txt"
-     * file
+     * @param loadUsers If saved users should be loaded from the user store
      * @throws IOException if port is not available.
      */
-    public Server(ServerController serverController, int port, boolean loadUsers) throws IOException {
-	this.serverController = serverController;
-	server = new ServerSocket(port);
-	if (loadUsers) {
-	    readInUsersFromFile();
-	}
-	start();
+    public Server(ServerListener listener, int port, boolean loadUsers) throws IOException {
+	this(listener, new ServerConfig().setPort(port).setLoadUsers(loadUsers));
     }
 
-    private synchronized void readInUsersFromFile() {
-	File file = new File("usernames.txt");
-	if (!file.exists()) {
-	    return;
+    /**
+     * Constructs the server object.
+     * Starts the engine listening for connecting users.
+     * @param listener Gets the events of the server, like the admin screen.
+     * @param config Port, engine and other startup settings.
+     * @throws IOException if port is not available.
+     */
+    public Server(ServerListener listener, ServerConfig config) throws IOException {
+	this.listener = listener;
+	this.config = config;
+	fanout = new FanoutExecutor(config.getFanoutThreads());
+	authStage = new AuthStage(config.getAuthThreads(), config.getAuthQueue());
+	if (config.getIdleTimeoutMillis() > 0) {
+	    idleWheel = new TimingWheel(Math.max(10, config.getIdleTimeoutMillis() / IDLE_TICKS), IDLE_TICKS);
+	}
+	store = new JournalUserStore(config.getUserStoreDir(), new File("usernames.txt"));
+	try {
+	    messages = new MessageLog(config.getMessageLogDir());
+	} catch (IOException e) {
+	    store.close();
+	    throw e;
 	}
-	try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
-	    String in;
-	    while ((in = reader.readLine()) != null) {
-		String[] user = in.split(";");
-		if (user.length == 2) {
-		    User u = new User(user[0], user[1], Status.OFFLINE);
-		    userList.add(u);
-		    Platform.runLater(() -> serverController.addNewUser(u));
+	try {
+	    if (config.getEngine() == ServerEngine.NIO) {
+		ServerSocketChannel channel = ServerSocketChannel.open();
+		channel.bind(new InetSocketAddress(config.getPort()));
+		server = channel.socket();
+		nioEngine = new NioEngine(this, channel, config.getEventLoops());
+	    } else {
+		server = new ServerSocket(config.getPort());
+		if (config.getEngine() == ServerEngine.VIRTUAL) {
+		    sessionExecutor = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("session-", 0).factory());
 		}
 	    }
 	} catch (IOException e) {
-	    System.err.println("Could not save to file:\n" + e.toString());
+	    store.close();
+	    messages.close();
+	    throw e;
+	}
+	if (config.getPresenceWindowMillis() > 0) {
+	    presence = new PresenceBatcher(config.getPresenceWindowMillis(), this::deliverPresence);
+	}
+	if (config.isLoadUsers()) {
+	    loader = new UserLoader(this, store, config.getLoadThreads());
+	}
+	if (nioEngine != null) {
+	    nioEngine.start();
+	} else {
+	    start();
+	}
+	//Users are loaded in the background, logins are served meanwhile
+	if (loader != null) {
+	    loader.start();
 	}
-
     }
 
-    private synchronized void writeUsersToFile(String str) {
-	File file = new File("usernames.txt");
-	try (PrintWriter out
-		= new PrintWriter(
-			new BufferedWriter(
-				new FileWriter(file, true)), true)) {
-	    out.println(str);
-	} catch (IOException e) {
-	    System.err.println("Could not save to file:\n" + e.toString());
+    /**
+     * Returns the user with the given username. While the saved users are
+     * loading, a saved user not loaded yet is read from the user store.
+     *
+     * @param uname Username, may be null
+     * @return the user, or null if no user is registered with that name
+     * @throws IOException If the user store could not be read
+     */
+    User findUser(String uname) throws IOException {
+	if (loader != null) {
+	    return loader.find(uname);
 	}
+	return users.get(uname);
+    }
+
+    /**
+     * Removes every saved user from the user store. Users registered while
+     * the server runs stay registered until it stops.
+     *
+     * @throws IOException If the store could not be written
+     */
+    public void clearSavedUsers() throws IOException {
+	store.clear();
     }
 
     /**
-     * Registers a new user, if username does not exist
+     * Registers a new user, if username does not exist and is a
+     * {@link Protocol#isValidName(String) valid name}
      *
      * @param uname Username
      * @param passord Password
-     * @return True if new user is created, false if username is used
+     * @return True if new user is created, false if username is used or not valid
      */
-    private boolean regNewUser(String uname, String passord) {
-	for (User u : userList) {
-	    if (u.getUname().equals(uname)) {
+    boolean regNewUser(String uname, String passord) {
+	if (!Protocol.isValidName(uname)) {
+	    return false;
+	}
+	try {
+	    if (findUser(uname) != null) {
 		return false;
 	    }
+	} catch (IOException e) {
+	    System.err.println("Could not read user store:\n" + e.toString());
+	    return false;
 	}
 	User u = new User(uname, passord, Status.ONLINE);
-	userList.add(u);
-	writeUsersToFile(u.toString());
-	Platform.runLater(() -> serverController.addNewUser(u)
-	);
+	if (!users.register(u)) {
+	    return false;
+	}
+	store.append(uname, passord).exceptionally(e -> {
+	    System.err.println("Could not save user " + uname + ":\n" + e.toString());
+	    return null;
+	});
+	listener.usersAdded(Collections.singletonList(u));
 
 	return true;
     }
 
+    /**
+     * Stores a chat message to a registered user that is not online. The message
+     * is delivered the next time the user logs in.
+     *
+     * @param to The recipient
+     * @param from The sender
+     * @param msg The message
+     * @return True if the message is stored, false if the recipient is not a user
+     */
+    boolean storeMessage(String to, String from, String msg) {
+	try {
+	    if (findUser(to) == null) {
+		return false;
+	    }
+	    messages.append(to, from, msg);
+	} catch (IOException e) {
+	    System.err.println("Could not store message to " + to + ":\n" + e.toString());
+	    return false;
+	}
+	//The recipient may have logged in while the message was stored
+	Session session = sessions.get(to);
+	if (session != null) {
+	    deliverStored(session);
+	}
+	return true;
+    }
+
+    /**
+     * Starts sending the stored messages to a user that logged in, unless they
+     * are already being sent. The messages are read from the log in batches, so
+     * a large backlog is never in memory at once.
+     *
+     * @param session The session of the user
+     */
+    void deliverStored(Session session) {
+	String uname = session.uname;
+	if (uname == null || messages.pending(uname) == 0 || !delivering.add(uname)) {
+	    return;
+	}
+	Thread.ofVirtual().name("deliver-" + uname).start(() -> {
+	    try {
+		deliverLoop(session, uname);
+	    } catch (IOException e) {
+		if (running) {
+		    System.err.println("Could not deliver stored messages to " + uname + ":\n" + e.toString());
+		}
+	    } finally {
+		delivering.remove(uname);
+	    }
+	    //A message stored while the last batch was sent is not missed
+	    if (running && sessions.get(uname) == session && messages.pending(uname) > 0) {
+		deliverStored(session);
+	    }
+	});
+    }
+
+    /**
+     * Sends one batch at a time, and waits for the outbound queue to drain
+     * below half before the next, so stored messages never fill up the queue.
+     * A batch is marked delivered when the writer has written it to the socket,
+     * so messages are not lost if the connection closes or a frame is dropped
+     * first. They are sent again at the next login.
+     */
+    private void deliverLoop(Session session, String uname) throws IOException {
+	int capacity = config.getOutboundCapacity();
+	int batchSize = Math.max(1, capacity / 4);
+	while (running && sessions.get(uname) == session) {
+	    List<MessageLog.StoredMessage> batch = messages.read(uname, batchSize);
+	    if (batch.isEmpty()) {
+		return;
+	    }
+	    CompletableFuture<Void> written = null;
+	    long upTo = 0;
+	    try {
+		if (!session.outbound.awaitSize(capacity / 2)) {
+		    return;
+		}
+		for (MessageLog.StoredMessage m : batch) {
+		    CompletableFuture<Void> sent = session.sendTracked(Frame.chat(m.getFrom(), m.getText()));
+		    if (sent == null) {
+			break;
+		    }
+		    written = sent;
+		    upTo = m.getOffset();
+		}
+		if (written == null) {
+		    return;
+		}
+		//Frames are written in order, so the rest of the batch is written too
+		written.get();
+	    } catch (InterruptedException | ExecutionException e) {
+		return;
+	    }
+	    messages.delivered(uname, upTo);
+	    if (upTo != batch.get(batch.size() - 1).getOffset()) {
+		return;
+	    }
+	}
+    }
+
+    /**
+     * Sends a message to every member of a room except the sender. The members
+     * are reached on the fan-out lanes, so the thread of the sender only queues
+     * one task, however many members the room has. Every member gets the
+     * posts in the order they were made.
+     *
+     * @param sender The session of the sender, must be a member of the room
+     * @param room Name of the room
+     * @param msg The message
+     */
+    void postToRoom(Session sender, String room, String msg) {
+	Frame frame = Frame.command(Command.ROOMMSG, room, sender.uname, msg).share();
+	fanout.broadcast(rooms.members(room), member -> {
+	    if (member == sender) {
+		return;
+	    }
+	    try {
+		member.send(frame);
+	    } catch (IOException e) {
+		//The connection is closed, the engine logs the user off
+	    }
+	});
+    }
+
     /**
      * Creates a thread that listens for new connections.
+     * On the virtual engine the listener and every session run on virtual threads.
      */
     private void start() {
 
-	new Thread(() -> {
+	Runnable acceptLoop = () -> {
 	    while (running) {
 		try {
 		    SocketInstanse socketIn = new SocketInstanse(server.accept());
-		    socketIn.start();
-		    onlineClients.add(socketIn);
+		    sessions.add(socketIn);
+		    socketIn.watchIdle();
+		    spawn(socketIn);
 
 		} catch (IOException e) {
 		    if (!(e instanceof SocketException)) {
-			serverController.printWarning("An IOException appeared, check your internet connection and try again.\n" + e.toString());
+			listener.warning("An IOException appeared, check your internet connection and try again.\n" + e.toString());
 		    }
 		}
 	    }
-	}).start();
+	};
+	spawn(acceptLoop);
+    }
+
+    /**
+     * Runs a task on a new virtual thread on the virtual engine, otherwise on a
+     * new platform thread.
+     */
+    private void spawn(Runnable task) {
+	if (sessionExecutor != null) {
+	    sessionExecutor.execute(task);
+	} else {
+	    new Thread(task).start();
+	}
     }
 
     /**
@@ -134,10 +368,37 @@ public final class Server {
      */
     public void stop() {
 	running = false;
+	System.out.println("Server stopped, " + stats);
+	System.out.println("Auth stage, " + authStage);
+	if (presence != null) {
+	    presence.close();
+	}
+	fanout.close();
+	authStage.close();
+	if (idleWheel != null) {
+	    idleWheel.close();
+	}
+	try {
+	    store.close();
+	} catch (IOException e) {
+	    System.err.println("Could not close user store:\n" + e.toString());
+	}
+	try {
+	    messages.close();
+	} catch (IOException e) {
+	    System.err.println("Could not close message log:\n" + e.toString());
+	}
 	try {
 	    server.close();
-	    for (SocketInstanse onlineClient : onlineClients) {
-		onlineClient.socket.close();
+	    if (nioEngine != null) {
+		nioEngine.stop();
+		return;
+	    }
+	    for (Session onlineClient : sessions.connected()) {
+		onlineClient.close();
+	    }
+	    if (sessionExecutor != null) {
+		sessionExecutor.shutdown();
 	    }
 	} catch (IOException e) {
 
@@ -163,293 +424,303 @@ public final class Server {
 	return Integer.toString(server.getLocalPort());
     }
 
-    private class SocketInstanse extends Thread {
+    /**
+     * Returns the registered users.
+     *
+     * @return the user directory
+     */
+    UserDirectory getUsers() {
+	return users;
+    }
+
+    /**
+     * Returns the sessions of the connected users.
+     *
+     * @return the session table
+     */
+    SessionTable<Session> getSessions() {
+	return sessions;
+    }
+
+    /**
+     * Returns the chat rooms and their members.
+     *
+     * @return the room table
+     */
+    RoomTable<Session> getRooms() {
+	return rooms;
+    }
+
+    /**
+     * Returns the lanes that deliver broadcasts.
+     *
+     * @return the fan-out executor
+     */
+    FanoutExecutor getFanout() {
+	return fanout;
+    }
+
+    /**
+     * Returns the stage running logins and registrations, with its counters.
+     *
+     * @return the auth stage
+     */
+    public AuthStage getAuthStage() {
+	return authStage;
+    }
+
+    /**
+     * Returns the timer of the idle timeouts.
+     *
+     * @return the wheel, or null if connections are never closed for being idle
+     */
+    TimingWheel getIdleWheel() {
+	return idleWheel;
+    }
+
+    /**
+     * Returns the startup settings.
+     *
+     * @return the config
+     */
+    ServerConfig getConfig() {
+	return config;
+    }
+
+    /**
+     * Returns the listener getting the events of the server.
+     *
+     * @return the listener
+     */
+    ServerListener getListener() {
+	return listener;
+    }
+
+    /**
+     * Sends a batch of status changes to every logged in user, on the fan-out
+     * lanes. Users with the PRESENCE capability get one PRESENCE frame, others
+     * get one STATUSUPDATE per changed user. Nobody gets their own change.
+     *
+     * @param changes username to new status
+     */
+    private void deliverPresence(Map<String, String> changes) {
+	Frame all = presenceFrame(changes, null).share();
+	Map<String, Frame> updates = statusUpdates(changes);
+	fanout.broadcast(sessions.loggedIn(), session -> {
+	    try {
+		if (session.hasCapability(Protocol.CAP_PRESENCE)) {
+		    Frame frame = changes.containsKey(session.uname) ? presenceFrame(changes, session.uname) : all;
+		    if (frame.size() > 0) {
+			session.send(frame);
+		    }
+		} else {
+		    for (Map.Entry<String, Frame> update : updates.entrySet()) {
+			if (!update.getKey().equals(session.uname)) {
+			    session.send(update.getKey(), update.getValue());
+			}
+		    }
+		}
+	    } catch (IOException e) {
+		//The connection is closed, the engine logs the user off
+	    }
+	});
+    }
+
+    /**
+     * Makes one shared STATUSUPDATE per changed user, for the users without
+     * the PRESENCE capability.
+     */
+    private static Map<String, Frame> statusUpdates(Map<String, String> changes) {
+	Map<String, Frame> updates = new LinkedHashMap<>();
+	for (Map.Entry<String, String> change : changes.entrySet()) {
+	    updates.put(change.getKey(), Frame.command(Command.STATUSUPDATE, change.getKey(), change.getValue()).share());
+	}
+	return updates;
+    }
+
+    private static Frame presenceFrame(Map<String, String> changes, String except) {
+	List<String> args = new ArrayList<>(changes.size() * 2);
+	for (Map.Entry<String, String> change : changes.entrySet()) {
+	    if (!change.getKey().equals(except)) {
+		args.add(change.getKey());
+		args.add(change.getValue());
+	    }
+	}
+	return Frame.command(Command.PRESENCE, args.toArray(new String[0]));
+    }
+
+    /**
+     * Returns the presence batcher.
+     *
+     * @return the batcher, or null if status changes are sent at once
+     */
+    PresenceBatcher getPresence() {
+	return presence;
+    }
+
+    /**
+     * Returns true if the server supports a HELLO capability.
+     *
+     * @param capability The capability
+     * @return if the capability can be used
+     */
+    boolean supports(String capability) {
+	if (Protocol.CAP_DEFLATE.equals(capability)) {
+	    return config.getCompressThreshold() > 0;
+	}
+	if (Protocol.CAP_PING.equals(capability)) {
+	    return idleWheel != null;
+	}
+	return Protocol.CAP_PRESENCE.equals(capability) && presence != null;
+    }
+
+    /**
+     * Returns the output and compression counters of the server.
+     *
+     * @return the counters
+     */
+    public ServerStats getStats() {
+	return stats;
+    }
+
+    /**
+     * Returns true until the server is stopped.
+     *
+     * @return if the server is running
+     */
+    boolean isRunning() {
+	return running;
+    }
+
+    private class SocketInstanse extends Session implements Runnable {
 
 	public final Socket socket;
-	private final BufferedWriter out;
-	private String uname;
-	private ArrayList<SocketInstanse> openConnections = new ArrayList<>();
+	private final OutputStream out;
+
+	private final ByteArrayOutputStream batch;
+	//The frames in batch, told written after the flush
+	private final List<Frame> batchFrames = new ArrayList<>();
 
 	/**
-	 * Takes in socket, stores output stream in field "out"
+	 * Takes in socket, stores the output stream in field "out"
 	 *
 	 * @param socket The SocketInstance uses this socket to comunicate
 	 * @throws IOException If network error
 	 */
 	SocketInstanse(Socket socket) throws IOException {
+	    super(Server.this);
 	    this.socket = socket;
-	    out = new BufferedWriter(new PrintWriter(this.socket.getOutputStream()));
+	    out = this.socket.getOutputStream();
+	    batch = new ByteArrayOutputStream(config.getFlushBytes());
 	    System.out.println("SERVER PORT: " + socket.getLocalPort());
 	}
 
 	/**
-	 * Listens for messages in the inputstream 'in'. Then the connection i s
-	 * lost, the user is logged off
+	 * Starts the writer, then listens for messages in the inputstream 'in'.
+	 * Then the connection i s lost, the user is logged off
 	 */
 	@Override
 	public void run() {
-	    try (BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()))) {
-		InetAddress clientAddr = socket.getInetAddress();
-		int clientPort = socket.getPort();
-		String receivedText;
-
-		while ((receivedText = in.readLine()) != null) {
-		    System.out.println("Client [" + clientAddr.getHostAddress() + ":" + clientPort + "] > " + receivedText);
-		    parseCommand(receivedText);
+	    spawn(this::writeLoop);
+	    try (InputStream in = socket.getInputStream()) {
+		byte[] buf = new byte[8192];
+		int n;
+
+		while ((n = in.read(buf)) != -1) {
+		    bytesReceived(buf, 0, n);
 		}
 		System.out.println("Closing socket");
 		socket.close();
-		onlineClients.remove(this);
 
 	    } catch (IOException e) {
 		System.err.println(e.getMessage());
-	    }
-
-	    for (User u : userList) {
-		if (u.getUname().equals(uname)) {
-		    if (u.isOnline()) {
-			try {
-			    sendUpdateToAll(Command.STATUSUPDATE, uname, "0");
-			} catch (IOException e) {
-			    e.printStackTrace();
-			}
-			logOff();
-		    }
+	    } catch (IllegalArgumentException e) {
+		System.err.println(e.getMessage() + " from " + remoteAddress());
+		try {
+		    socket.close();
+		} catch (IOException ignored) {
 		}
-	    }
-
-	}
-
-	/**
-	 * Sends a text message to the user connected to this socket instanse
-	 *
-	 * @param uname The sender of the message
-	 * @param msg The message
-	 * @throws IOException If the user could not be reached, possibly due to
-	 * network issues
-	 */
-	void sendMsg(String uname, String msg) throws IOException {
-	    sendCommandFromServer("TYPE 1", uname, msg);
-	}
-
-	/**
-	 * Sends a DISCONNECT command to the user with the username "userName"
-	 *
-	 * @param userName The username of the user to be disconnected from
-	 * @throws IOException If the user could not be reached, possibly due to
-	 * network issues
-	 */
-	private void disconnectMe(String userName) throws IOException {
-	    for (SocketInstanse i : openConnections) {
-		if (i.uname.equals(userName)) {
-		    i.sendCommandFromServer(Command.DISCONNECT, uname);
-		    break;
+	    } catch (RuntimeException e) {
+		//Any failure must still log the user off below
+		System.err.println("Error handling " + remoteAddress() + ": " + e);
+		try {
+		    socket.close();
+		} catch (IOException ignored) {
 		}
 	    }
+	    outbound.close();
+	    sessions.remove(uname, this);
+
+	    connectionClosed();
 	}
 
 	/**
-	 * Sends a complete list off all the users to the user of this
-	 * socketInstance
-	 *
-	 * @throws IOException If the user could not be reached, possibly due to
-	 * network issues
+	 * The single writer of this session. Takes frames from the outbound queue
+	 * and writes them to the socket, until the queue is closed. A slow client
+	 * only blocks this thread, never the sender.<br>
+	 * Frames are collected in a batch and written with one socket write. The
+	 * batch is written when it reaches the flush threshold, or when no more
+	 * frames arrive within the flush window after the first one, so a frame
+	 * waits at most one window.
 	 */
-	void sendUsers() throws IOException {
-	    StringBuilder users = new StringBuilder();
-
-	    for (User u : userList) {
-		if (u.getUname().equals(uname)) {
-		    continue;
-		}
-
-		if (!u.isOnline()) {
-		    users.append(u.getUname()).append(";").append("0").append(";");
-		} else if (u.isBusy()) {
-		    users.append(u.getUname()).append(";").append("-").append(";");
-		} else {
-		    users.append(u.getUname()).append(";").append("+").append(";");
-		}
-	    }
-
-	    sendCommandFromServer(Command.USERLIST, users.toString());
-	}
-
-	private void sendCommandFromServer(String... lines) throws IOException {
-
-	    for (int i = 0; i < lines.length - 1; i++) {
-		out.write(lines[i] + ";");
-	    }
-	    out.write(lines[lines.length - 1]);
-	    out.newLine();
-	    out.flush();
-	}
-
-	private void sendCommandFromServer(Command command, String... lines) throws IOException {
-	    String[] newCommand = new String[lines.length + 2];
-	    newCommand[0] = "TYPE 0";
-	    newCommand[1] = command.toString();
-	    System.arraycopy(lines, 0, newCommand, 2, lines.length);
-	    sendCommandFromServer(newCommand);
-	}
-
-	private void sendUpdateToAll(Command command, String... lines) throws IOException {
-	    for (SocketInstanse user : onlineClients) {
-		if (user.uname != null) {
-		    if (user.uname.equals(this.uname)) {
-			continue;
-		    }
-
-		    user.out.write("TYPE 0" + ";" + command.toString() + ";");
-		    for (int i = 0; i < lines.length - 1; i++) {
-			user.out.write(lines[i] + ";");
-		    }
-		    user.out.write(lines[lines.length - 1]);
-		    user.out.newLine();
-		    user.out.flush();
-		}
-	    }
-	}
-
-	private void parseCommand(String s) throws IOException {
-	    String[] sub = s.split(";");
-	    switch (sub[0]) {
-		case "TYPE 0":
-		    switch (sub[1]) {
-			case "REGUSER":
-			    if (regNewUser(sub[2], sub[3])) {
-				uname = sub[2];
-				sendUpdateToAll(Command.STATUSUPDATE, uname, "+");
-				sendCommandFromServer(Command.LOGINSUCCESS);
-			    } else {
-				sendCommandFromServer(Command.REGUSERFAIL);
-			    }
-
-			    break;
-			case "GETUSERS":
-			    sendUsers();
-			    break;
-			case "LOGIN":
-			    try {
-				logIn(sub);
-				sendCommandFromServer(Command.LOGINSUCCESS);
-				sendUpdateToAll(Command.STATUSUPDATE, uname, "+");
-				serverController.updateStatus();
-			    } catch (LoginException e) {
-				sendCommandFromServer(Command.LOGINFAIL, e.getMessage());
-			    }
-			    break;
-			case "LOGOFF":
-			    sendUpdateToAll(Command.STATUSUPDATE, uname, "0");
-			    logOff();
-			    serverController.updateStatus();
-			    break;
-			case "CONNECT":
-			    connectTo(sub[2]);
-			    break;
-			case "RESPONSE":
-			    sendResponse(sub[2], sub[3]);
-			    break;
-			case "DISCONNECT":
-			    disconnectMe(sub[2]);
-			    break;
-			case "STATUSUPDATE":
-			    String status = sub[2];
-			    sendUpdateToAll(Command.STATUSUPDATE, uname, status);
-			    updateStatus(status);
-			    serverController.updateStatus();
-			    break;
-			default:
-			    System.err.println("Bad protocol");
-		    }
-		    break;
-		case "TYPE 1":
-		    for (SocketInstanse partner : openConnections) {
-			if (partner.uname.equals(sub[1])) {
-			    StringBuilder msg = new StringBuilder();
-			    for (int i = 2; i < sub.length; i++) {
-				msg.append(sub[i]);
-			    }
-			    try {
-				partner.sendMsg(uname, msg.toString());
-			    } catch (IOException e) {
-				serverController.printWarning(uname + " could not send message to " + partner.uname);
-			    }
+	private void writeLoop() {
+	    long linger = TimeUnit.MICROSECONDS.toNanos(config.getFlushLingerMicros());
+	    try {
+		Frame frame;
+		while ((frame = outbound.take()) != null) {
+		    long deadline = System.nanoTime() + linger;
+		    do {
+			batch.write(encode(frame));
+			batchFrames.add(frame);
+			if (batch.size() >= config.getFlushBytes()) {
 			    break;
 			}
-
-		    }
-
-		    break;
-		default:
-		    throw new IllegalArgumentException("Bad protocol");
-	    }
-	}
-
-	private void connectTo(String s) throws IOException {
-	    for (SocketInstanse i : onlineClients) {
-		if (i.uname.equals(s)) {
-		    try {
-			i.sendCommandFromServer(Command.CONNECT, uname);
-		    } catch (IOException e) {
-			sendCommandFromServer(Command.ERROR, "Could not connect to user");
+			frame = outbound.poll();
+			if (frame == null && linger > 0) {
+			    frame = outbound.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+			}
+		    } while (frame != null);
+		    batch.writeTo(out);
+		    out.flush();
+		    stats.framesWritten(batchFrames.size());
+		    stats.writeCall(batch.size());
+		    batch.reset();
+		    for (Frame written : batchFrames) {
+			written(written);
 		    }
+		    batchFrames.clear();
 		}
-	    }
-	}
-
-	private void sendResponse(String userName, String answer) throws IOException {
-	    for (SocketInstanse s : onlineClients) {
-		if (s.uname.equals(userName)) {
-		    s.sendCommandFromServer(Command.RESPONSE, uname, answer);
-		    if (answer.equals("YES")) {
-			openConnections.add(s);
-		    }
-		    s.openConnections.add(this);
-		    return;
+	    } catch (IOException e) {
+		System.err.println(e.getMessage());
+		try {
+		    socket.close();
+		} catch (IOException ignored) {
 		}
-	    }
-	    sendCommandFromServer(Command.ERROR, "User not in online list");
-	}
-
-	private void logOff() {
-	    for (User u : userList) {
-		if (u.getUname().equals(uname)) {
-		    u.logOff();
-		    for (SocketInstanse connection : openConnections) {
-			for (int i = 0; i < connection.openConnections.size(); i++) {
-			    if (connection.openConnections.get(i).uname.equals(uname)) {
-				connection.openConnections.remove(i);
-
-				break;
-			    }
-			}
-		    }
+	    } catch (RuntimeException e) {
+		//Closing the socket ends the reader, which cleans up
+		System.err.println("Could not write to " + remoteAddress() + ": " + e);
+		try {
+		    socket.close();
+		} catch (IOException ignored) {
 		}
+	    } catch (InterruptedException e) {
+		Thread.currentThread().interrupt();
 	    }
 	}
 
-	private void logIn(String[] sub) throws LoginException {
-	    for (User u : userList) {
-		if (u.getUname().equals(sub[2])) {
-		    //Throws exception if allready logged in or wrong username
-		    u.login(sub[3]);
-		    uname = sub[2];
+	@Override
+	void outboundReady() {
+	    //The writer is waiting on the queue
+	}
 
-		    return;
-		}
-	    }
-	    throw new LoginException("Wrong username or password.");
+	@Override
+	void close() throws IOException {
+	    socket.close();
 	}
 
-	private void updateStatus(String status) {
-	    for (User u : userList) {
-		if (u.getUname().equals(uname)) {
-		    boolean busy = !status.equals("+");
-		    u.setStatus(Status.BUSY);
-		    return;
-		}
-	    }
+	@Override
+	String remoteAddress() {
+	    return socket.getInetAddress().getHostAddress() + ":" + socket.getPort();
 	}
     }
 }
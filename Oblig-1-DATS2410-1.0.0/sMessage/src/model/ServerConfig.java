@@ -0,0 +1,523 @@
+package model;
+
+import java.io.File;
+import java.util.Locale;
+import java.util.Properties;
+import model.protocol.Protocol;
+import model.server.OutboundQueue;
+
+/**
+ * Startup settings for the {@link Server server}.
+ * Every setting has a default, so a new ServerConfig can be used as is.
+ * The settings can also be read from properties, see {@link #fromProperties(Properties) fromProperties}.
+ *
+ * @author Member(1-2-3-4)
+ */
+public class ServerConfig {
+
+    private int port = 0;
+    private boolean loadUsers = false;
+    private ServerEngine engine = ServerEngine.BLOCKING;
+    private int eventLoops = Runtime.getRuntime().availableProcessors();
+    private int outboundCapacity = 1024;
+    private OutboundQueue.Policy outboundPolicy = OutboundQueue.Policy.COALESCE;
+    private long flushLingerMicros = 200;
+    private int flushBytes = 16 * 1024;
+    private long presenceWindowMillis = 50;
+    private File userStoreDir = new File("users");
+    private int loadThreads = Runtime.getRuntime().availableProcessors();
+    private File messageLogDir = new File("messages");
+    private int fanoutThreads = Runtime.getRuntime().availableProcessors();
+    private int compressThreshold = Protocol.COMPRESS_THRESHOLD;
+    private int authThreads = Runtime.getRuntime().availableProcessors();
+    private int authQueue = 256;
+    private long idleTimeoutMillis = 60000;
+    private long legacyIdleTimeoutMillis = 600000;
+
+    /**
+     * Creates a config from properties. The keys are the names of the settings,
+     * like "port", "engine" or "loadUsers". Settings not given keep their default.
+     *
+     * @param props The settings
+     * @return the config
+     * @throws IllegalArgumentException If a key is unknown or a value is not valid
+     */
+    public static ServerConfig fromProperties(Properties props) {
+	ServerConfig config = new ServerConfig();
+	for (String key : props.stringPropertyNames()) {
+	    String value = props.getProperty(key).trim();
+	    switch (key) {
+		case "port":
+		    config.setPort(Integer.parseInt(value));
+		    break;
+		case "loadUsers":
+		    config.setLoadUsers(Boolean.parseBoolean(value));
+		    break;
+		case "engine":
+		    config.setEngine(ServerEngine.valueOf(value.toUpperCase(Locale.ROOT)));
+		    break;
+		case "eventLoops":
+		    config.setEventLoops(Integer.parseInt(value));
+		    break;
+		case "outboundCapacity":
+		    config.setOutboundCapacity(Integer.parseInt(value));
+		    break;
+		case "outboundPolicy":
+		    config.setOutboundPolicy(OutboundQueue.Policy.valueOf(value.toUpperCase(Locale.ROOT)));
+		    break;
+		case "flushLingerMicros":
+		    config.setFlushLingerMicros(Long.parseLong(value));
+		    break;
+		case "flushBytes":
+		    config.setFlushBytes(Integer.parseInt(value));
+		    break;
+		case "presenceWindowMillis":
+		    config.setPresenceWindowMillis(Long.parseLong(value));
+		    break;
+		case "userStoreDir":
+		    config.setUserStoreDir(new File(value));
+		    break;
+		case "loadThreads":
+		    config.setLoadThreads(Integer.parseInt(value));
+		    break;
+		case "messageLogDir":
+		    config.setMessageLogDir(new File(value));
+		    break;
+		case "fanoutThreads":
+		    config.setFanoutThreads(Integer.parseInt(value));
+		    break;
+		case "compressThreshold":
+		    config.setCompressThreshold(Integer.parseInt(value));
+		    break;
+		case "authThreads":
+		    config.setAuthThreads(Integer.parseInt(value));
+		    break;
+		case "authQueue":
+		    config.setAuthQueue(Integer.parseInt(value));
+		    break;
+		case "idleTimeoutMillis":
+		    config.setIdleTimeoutMillis(Long.parseLong(value));
+		    break;
+		case "legacyIdleTimeoutMillis":
+		    config.setLegacyIdleTimeoutMillis(Long.parseLong(value));
+		    break;
+		default:
+		    throw new IllegalArgumentException("Unknown setting: " + key);
+	    }
+	}
+	return config;
+    }
+
+    /**
+     * Returns the port the server listens on. 0 means any free port.
+     *
+     * @return the port
+     */
+    public int getPort() {
+	return port;
+    }
+
+    /**
+     * Sets the port the server listens on. 0 means any free port.
+     *
+     * @param port the port
+     * @return this config
+     */
+    public ServerConfig setPort(int port) {
+	this.port = port;
+	return this;
+    }
+
+    /**
+     * Returns true if saved users should be loaded at startup.
+     *
+     * @return if saved users are loaded
+     */
+    public boolean isLoadUsers() {
+	return loadUsers;
+    }
+
+    /**
+     * Sets if saved users should be loaded at startup.
+     *
+     * @param loadUsers if saved users are loaded
+     * @return this config
+     */
+    public ServerConfig setLoadUsers(boolean loadUsers) {
+	this.loadUsers = loadUsers;
+	return this;
+    }
+
+    /**
+     * Returns the network engine.
+     *
+     * @return the engine
+     */
+    public ServerEngine getEngine() {
+	return engine;
+    }
+
+    /**
+     * Sets the network engine.
+     *
+     * @param engine the engine
+     * @return this config
+     */
+    public ServerConfig setEngine(ServerEngine engine) {
+	this.engine = engine;
+	return this;
+    }
+
+    /**
+     * Returns the number of event loop threads used by the NIO engine.
+     *
+     * @return number of event loops
+     */
+    public int getEventLoops() {
+	return eventLoops;
+    }
+
+    /**
+     * Sets the number of event loop threads used by the NIO engine.
+     *
+     * @param eventLoops number of event loops, at least 1
+     * @return this config
+     */
+    public ServerConfig setEventLoops(int eventLoops) {
+	if (eventLoops < 1) {
+	    throw new IllegalArgumentException("At least one event loop is needed.");
+	}
+	this.eventLoops = eventLoops;
+	return this;
+    }
+
+    /**
+     * Returns the maximum number of frames queued for one user.
+     *
+     * @return outbound queue capacity
+     */
+    public int getOutboundCapacity() {
+	return outboundCapacity;
+    }
+
+    /**
+     * Sets the maximum number of frames queued for one user.
+     *
+     * @param outboundCapacity outbound queue capacity, at least 1
+     * @return this config
+     */
+    public ServerConfig setOutboundCapacity(int outboundCapacity) {
+	if (outboundCapacity < 1) {
+	    throw new IllegalArgumentException("Outbound capacity must be at least 1.");
+	}
+	this.outboundCapacity = outboundCapacity;
+	return this;
+    }
+
+    /**
+     * Returns what is done when the outbound queue of a user is full.
+     *
+     * @return the slow consumer policy
+     */
+    public OutboundQueue.Policy getOutboundPolicy() {
+	return outboundPolicy;
+    }
+
+    /**
+     * Sets what is done when the outbound queue of a user is full.
+     *
+     * @param outboundPolicy the slow consumer policy
+     * @return this config
+     */
+    public ServerConfig setOutboundPolicy(OutboundQueue.Policy outboundPolicy) {
+	this.outboundPolicy = outboundPolicy;
+	return this;
+    }
+
+    /**
+     * Returns how long a writer waits for more frames before it flushes a batch.
+     *
+     * @return flush window in microseconds
+     */
+    public long getFlushLingerMicros() {
+	return flushLingerMicros;
+    }
+
+    /**
+     * Sets how long a writer waits for more frames before it flushes a batch.
+     * 0 flushes as soon as the outbound queue is empty. The NIO engine always
+     * flushes once per event loop iteration and does not wait.
+     *
+     * @param flushLingerMicros flush window in microseconds, not negative
+     * @return this config
+     */
+    public ServerConfig setFlushLingerMicros(long flushLingerMicros) {
+	if (flushLingerMicros < 0) {
+	    throw new IllegalArgumentException("Flush window can not be negative.");
+	}
+	this.flushLingerMicros = flushLingerMicros;
+	return this;
+    }
+
+    /**
+     * Returns the number of bytes that makes a writer flush at once.
+     *
+     * @return flush threshold in bytes
+     */
+    public int getFlushBytes() {
+	return flushBytes;
+    }
+
+    /**
+     * Sets the number of bytes that makes a writer flush at once, without
+     * waiting for the flush window.
+     *
+     * @param flushBytes flush threshold in bytes, at least 1
+     * @return this config
+     */
+    public ServerConfig setFlushBytes(int flushBytes) {
+	if (flushBytes < 1) {
+	    throw new IllegalArgumentException("Flush threshold must be at least 1 byte.");
+	}
+	this.flushBytes = flushBytes;
+	return this;
+    }
+
+    /**
+     * Returns how long status changes are collected before they are sent.
+     *
+     * @return presence window in milliseconds
+     */
+    public long getPresenceWindowMillis() {
+	return presenceWindowMillis;
+    }
+
+    /**
+     * Sets how long status changes are collected before they are sent.
+     * 0 sends every change at once, as a STATUSUPDATE to every user.
+     *
+     * @param presenceWindowMillis presence window in milliseconds, not negative
+     * @return this config
+     */
+    public ServerConfig setPresenceWindowMillis(long presenceWindowMillis) {
+	if (presenceWindowMillis < 0) {
+	    throw new IllegalArgumentException("Presence window can not be negative.");
+	}
+	this.presenceWindowMillis = presenceWindowMillis;
+	return this;
+    }
+
+    /**
+     * Returns the directory of the user store.
+     *
+     * @return the directory
+     */
+    public File getUserStoreDir() {
+	return userStoreDir;
+    }
+
+    /**
+     * Sets the directory of the user store. An old "usernames.txt" file is
+     * imported the first time a directory is used.
+     *
+     * @param userStoreDir the directory
+     * @return this config
+     */
+    public ServerConfig setUserStoreDir(File userStoreDir) {
+	this.userStoreDir = userStoreDir;
+	return this;
+    }
+
+    /**
+     * Returns the number of threads parsing saved users at startup.
+     *
+     * @return number of threads
+     */
+    public int getLoadThreads() {
+	return loadThreads;
+    }
+
+    /**
+     * Sets the number of threads parsing saved users at startup.
+     *
+     * @param loadThreads number of threads, at least 1
+     * @return this config
+     */
+    public ServerConfig setLoadThreads(int loadThreads) {
+	if (loadThreads < 1) {
+	    throw new IllegalArgumentException("At least one load thread is needed.");
+	}
+	this.loadThreads = loadThreads;
+	return this;
+    }
+
+    /**
+     * Returns the directory of the log with messages to offline users.
+     *
+     * @return the directory
+     */
+    public File getMessageLogDir() {
+	return messageLogDir;
+    }
+
+    /**
+     * Sets the directory of the log with messages to offline users.
+     *
+     * @param messageLogDir the directory
+     * @return this config
+     */
+    public ServerConfig setMessageLogDir(File messageLogDir) {
+	this.messageLogDir = messageLogDir;
+	return this;
+    }
+
+    /**
+     * Returns the number of threads delivering status updates and room posts.
+     *
+     * @return number of fan-out threads
+     */
+    public int getFanoutThreads() {
+	return fanoutThreads;
+    }
+
+    /**
+     * Sets the number of threads delivering status updates and room posts.
+     * The users are split between the threads, and every user is always
+     * served by the same thread.
+     *
+     * @param fanoutThreads number of fan-out threads, at least 1
+     * @return this config
+     */
+    public ServerConfig setFanoutThreads(int fanoutThreads) {
+	if (fanoutThreads < 1) {
+	    throw new IllegalArgumentException("At least one fan-out thread is needed.");
+	}
+	this.fanoutThreads = fanoutThreads;
+	return this;
+    }
+
+    /**
+     * Returns the size above which frames to the users are compressed.
+     *
+     * @return compression threshold in bytes, 0 if compression is off
+     */
+    public int getCompressThreshold() {
+	return compressThreshold;
+    }
+
+    /**
+     * Sets the size above which frames to the users are compressed. Only users
+     * that ask for compression in HELLO and use SMP version 2 get compressed frames.
+     * 0 turns compression off.
+     *
+     * @param compressThreshold compression threshold in bytes, not negative
+     * @return this config
+     */
+    public ServerConfig setCompressThreshold(int compressThreshold) {
+	if (compressThreshold < 0) {
+	    throw new IllegalArgumentException("Compression threshold can not be negative.");
+	}
+	this.compressThreshold = compressThreshold;
+	return this;
+    }
+
+    /**
+     * Returns the number of logins and registrations running at the same time.
+     *
+     * @return number of auth threads
+     */
+    public int getAuthThreads() {
+	return authThreads;
+    }
+
+    /**
+     * Sets the number of logins and registrations running at the same time.
+     *
+     * @param authThreads number of auth threads, at least 1
+     * @return this config
+     */
+    public ServerConfig setAuthThreads(int authThreads) {
+	if (authThreads < 1) {
+	    throw new IllegalArgumentException("At least one auth thread is needed.");
+	}
+	this.authThreads = authThreads;
+	return this;
+    }
+
+    /**
+     * Returns the number of logins and registrations that may wait for an auth thread.
+     *
+     * @return auth queue capacity
+     */
+    public int getAuthQueue() {
+	return authQueue;
+    }
+
+    /**
+     * Sets the number of logins and registrations that may wait for an auth thread.
+     * Users logging in when the queue is full are told to try again later.
+     *
+     * @param authQueue auth queue capacity, at least 1
+     * @return this config
+     */
+    public ServerConfig setAuthQueue(int authQueue) {
+	if (authQueue < 1) {
+	    throw new IllegalArgumentException("The auth queue needs room for at least one login.");
+	}
+	this.authQueue = authQueue;
+	return this;
+    }
+
+    /**
+     * Returns how long a connection may be silent before it is closed.
+     *
+     * @return idle timeout in milliseconds, 0 if connections are never closed for being idle
+     */
+    public long getIdleTimeoutMillis() {
+	return idleTimeoutMillis;
+    }
+
+    /**
+     * Sets how long a connection may be silent before it is closed.
+     * Users that asked for PING get one after half the time. Users of old
+     * clients without PING get the {@link #setLegacyIdleTimeoutMillis(long) legacy
+     * idle timeout} once logged in. 0 turns both timeouts off.
+     *
+     * @param idleTimeoutMillis idle timeout in milliseconds, not negative
+     * @return this config
+     */
+    public ServerConfig setIdleTimeoutMillis(long idleTimeoutMillis) {
+	if (idleTimeoutMillis < 0) {
+	    throw new IllegalArgumentException("Idle timeout can not be negative.");
+	}
+	this.idleTimeoutMillis = idleTimeoutMillis;
+	return this;
+    }
+
+    /**
+     * Returns how long a logged in user of an old client without PING may be
+     * silent before the connection is closed.
+     *
+     * @return legacy idle timeout in milliseconds, 0 if they are never closed for being idle
+     */
+    public long getLegacyIdleTimeoutMillis() {
+	return legacyIdleTimeoutMillis;
+    }
+
+    /**
+     * Sets how long a logged in user of an old client without PING may be
+     * silent before the connection is closed. Old clients send nothing while
+     * the user only reads, so this is longer than the idle timeout. Only used
+     * if the idle timeout is on. 0 lets them be idle as long as they like.
+     *
+     * @param legacyIdleTimeoutMillis legacy idle timeout in milliseconds, not negative
+     * @return this config
+     */
+    public ServerConfig setLegacyIdleTimeoutMillis(long legacyIdleTimeoutMillis) {
+	if (legacyIdleTimeoutMillis < 0) {
+	    throw new IllegalArgumentException("Legacy idle timeout can not be negative.");
+	}
+	this.legacyIdleTimeoutMillis = legacyIdleTimeoutMillis;
+	return this;
+    }
+}
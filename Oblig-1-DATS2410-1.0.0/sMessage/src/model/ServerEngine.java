@@ -0,0 +1,15 @@
+package model;
+
+/**
+ * The network engines the {@link Server server} can run on.
+ * BLOCKING is the original engine with one thread per connected user.
+ * VIRTUAL is the same engine, but with one virtual thread per connected user (Java 21).
+ * NIO multiplexes every connection on a small, fixed set of event loop threads.
+ *
+ * @author Member(1-2-3-4)
+ */
+public enum ServerEngine {
+    BLOCKING,
+    VIRTUAL,
+    NIO
+}
@@ -0,0 +1,49 @@
+package model;
+
+import java.util.List;
+
+/**
+ * Gets the events of a {@link Server server} that an admin screen or a log
+ * would show. The server does not know about any UI, every method is called
+ * from the server's own threads, often several at once, so a UI must move the
+ * work to its own thread. The methods should return quickly.<br>
+ * Every method does nothing by default.
+ *
+ * @author Member(1-2-3-4)
+ */
+public interface ServerListener {
+
+    /**
+     * New users are registered, or saved users are loaded.
+     *
+     * @param users The new users
+     */
+    default void usersAdded(List<User> users) {
+    }
+
+    /**
+     * A user logged in, logged off or changed status.
+     *
+     * @param user The user, with the new status
+     */
+    default void statusChanged(User user) {
+    }
+
+    /**
+     * Progress of loading the saved users at startup.
+     *
+     * @param loaded Number of users loaded
+     * @param total Number of saved users
+     * @param done If loading is finished
+     */
+    default void loadProgress(long loaded, long total, boolean done) {
+    }
+
+    /**
+     * Something went wrong that the admin should know about.
+     *
+     * @param message The warning
+     */
+    default void warning(String message) {
+    }
+}
@@ -0,0 +1,856 @@
+package model;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import model.protocol.Frame;
+import model.protocol.FrameCodec;
+import model.protocol.FrameCompressor;
+import model.protocol.FrameDecoder;
+import model.protocol.Protocol;
+import model.server.OutboundQueue;
+import model.server.PresenceBatcher;
+import model.server.TimingWheel;
+import model.server.UserDirectory;
+
+/**
+ * One connected user on the {@link Server server}, independent of the network engine.
+ * Decodes the Simple Messaging Protocol (SMP) frames received from the user and routes them
+ * to other sessions through the {@link model.server.SessionTable session table} in the server class.<br>
+ * Frames to the user are put on a bounded {@link OutboundQueue outbound queue}, and the engine
+ * lets a single writer take them out, {@link #encode(Frame) encode} them and write them to the socket.<br>
+ * Every session starts on SMP version 1 and switches version when the client sends HELLO.
+ * If both sides support it, large frames are compressed in both directions from then on.<br>
+ * Logins and registrations run on the {@link model.server.AuthStage auth stage} of the server.
+ * Frames received meanwhile are held, and handled in order when the login is done.<br>
+ * A session that receives nothing for the idle timeout is closed, see {@link #watchIdle() watchIdle}.
+ *
+ * @author Member(1-2-3-4)
+ */
+abstract class Session {
+
+    /**
+     * Longest allowed room name.
+     */
+    static final int MAX_ROOM_NAME = 64;
+    /**
+     * Most frames held while a login runs, more are dropped.
+     */
+    static final int MAX_HELD = 64;
+
+    final Server server;
+    String uname;
+    final List<Session> openConnections = new CopyOnWriteArrayList<>();
+    //The rooms this user is a member of, so they can be left at log off
+    private final Set<String> joinedRooms = ConcurrentHashMap.newKeySet();
+    final OutboundQueue<Frame> outbound;
+    final FrameDecoder decoder = new FrameDecoder(Protocol.VERSION_1);
+    private int outVersion = Protocol.VERSION_1;
+    //Set by HELLO, before the answer is queued, and only used by the writer after the answer
+    private FrameCompressor compressor;
+    private boolean compressOut = false;
+    private volatile Set<String> capabilities = Set.of();
+    private final Object authLock = new Object();
+    //Guarded by authLock
+    private final List<Frame> held = new ArrayList<>();
+    private boolean authenticating = false;
+    private boolean closed = false;
+    //Milliseconds on the nanoTime clock, set on every read
+    private volatile long lastReceived = now();
+    private volatile TimingWheel.Timeout idleCheck;
+    //Frames from sendTracked not written yet, Frame does not override equals
+    private final Map<Frame, CompletableFuture<Void>> tracked = new ConcurrentHashMap<>();
+
+    /**
+     * Constructs a session belonging to the given server.
+     *
+     * @param server The server this session belongs to
+     */
+    Session(Server server) {
+	this.server = server;
+	outbound = new OutboundQueue<>(server.getConfig().getOutboundCapacity(), server.getConfig().getOutboundPolicy());
+    }
+
+    /**
+     * Tells the engine that there are frames in the outbound queue. Called by
+     * the thread that queued them.
+     */
+    abstract void outboundReady();
+
+    /**
+     * Queues one frame to the user connected to this session.
+     *
+     * @param frame The frame
+     * @throws IOException If the connection is closed
+     */
+    void send(Frame frame) throws IOException {
+	send(null, frame);
+    }
+
+    /**
+     * Queues one frame to the user connected to this session. Returns at once,
+     * the frame is written by the writer of this session. If the user does not
+     * keep up, the slow consumer policy from the config decides if the frame
+     * is dropped or the connection is closed.
+     *
+     * @param key Coalescing key, frames with the same key replace each other
+     * while queued. Null if the frame must always be sent.
+     * @param frame The frame
+     * @throws IOException If the connection is closed
+     */
+    void send(String key, Frame frame) throws IOException {
+	queued(outbound.offer(key, frame));
+    }
+
+    /**
+     * Queues one frame like {@link #send(Frame) send}, and tells when it has
+     * been written to the socket. Used for stored messages, which must stay in
+     * the message log until the user has got them.
+     *
+     * @param frame The frame, must not be queued to this session again
+     * @return completed when the frame is written, or completed exceptionally
+     * if the connection closes first. Null if the frame was not queued.
+     * @throws IOException If the connection is closed
+     */
+    CompletableFuture<Void> sendTracked(Frame frame) throws IOException {
+	CompletableFuture<Void> written = new CompletableFuture<>();
+	//Put before the offer, the writer may take the frame at once
+	tracked.put(frame, written);
+	boolean queued = false;
+	try {
+	    queued = queued(outbound.offer(null, frame));
+	} finally {
+	    if (!queued) {
+		tracked.remove(frame);
+	    }
+	}
+	return queued ? written : null;
+    }
+
+    private boolean queued(OutboundQueue.Result result) throws IOException {
+	switch (result) {
+	    case CLOSED:
+		throw new IOException("Connection closed");
+	    case DROPPED:
+		System.err.println("Outbound queue full, dropped frame to " + remoteAddress());
+		return false;
+	    case OVERFLOW:
+		System.err.println("Outbound queue full, disconnecting slow client " + remoteAddress());
+		try {
+		    close();
+		} catch (IOException e) {
+		    System.err.println(e.getMessage());
+		}
+		return false;
+	    default:
+		outboundReady();
+		return true;
+	}
+    }
+
+    /**
+     * Called by the writer for every frame written to the socket, in queue order.
+     *
+     * @param frame The frame
+     */
+    void written(Frame frame) {
+	if (!tracked.isEmpty()) {
+	    CompletableFuture<Void> written = tracked.remove(frame);
+	    if (written != null) {
+		written.complete(null);
+	    }
+	}
+    }
+
+    /**
+     * Returns true if both the user and the server support a capability from HELLO.
+     *
+     * @param capability The capability
+     * @return if the capability is used
+     */
+    boolean hasCapability(String capability) {
+	return capabilities.contains(capability);
+    }
+
+    /**
+     * Closes the connection to the user.
+     *
+     * @throws IOException If the connection could not be closed
+     */
+    abstract void close() throws IOException;
+
+    /**
+     * Returns the address of the user as "ip:port", used for logging.
+     *
+     * @return the remote address
+     */
+    abstract String remoteAddress();
+
+    /**
+     * Encodes a frame from the outbound queue with the protocol version the
+     * user reads, and compresses it if compression is used. Only called by the
+     * single writer, in queue order. The answer to HELLO is the last frame sent
+     * with the old version and without compression.
+     *
+     * @param frame The frame
+     * @return the bytes to write
+     */
+    byte[] encode(Frame frame) {
+	byte[] bytes = FrameCodec.encode(frame, outVersion);
+	if (frame.getCommand() == Command.HELLO) {
+	    outVersion = Protocol.negotiate(frame.arg(0));
+	    compressOut = compressor != null;
+	    return bytes;
+	}
+	return compressOut ? compressor.compress(frame, bytes) : bytes;
+    }
+
+    /**
+     * Decodes bytes received from the user and handles every complete frame.
+     *
+     * @param data The bytes
+     * @param off Start of the bytes in data
+     * @param len Number of bytes
+     * @throws IOException If a reply could not be sent
+     * @throws IllegalArgumentException If the bytes are not SMP frames
+     */
+    void bytesReceived(byte[] data, int off, int len) throws IOException {
+	lastReceived = now();
+	decoder.feed(data, off, len, this::frameReceived);
+    }
+
+    private void frameReceived(Frame frame) throws IOException {
+	System.out.println("Client [" + remoteAddress() + "] > " + frame);
+	synchronized (authLock) {
+	    if (authenticating) {
+		if (held.size() < MAX_HELD) {
+		    held.add(frame);
+		} else {
+		    System.err.println("Too many frames during login, dropped frame from " + remoteAddress());
+		}
+		return;
+	    }
+	}
+	parseCommand(frame);
+    }
+
+    /**
+     * Must be called by the engine once when the connection is lost. Logs the
+     * user off if still online. If a login is running, the user is logged off
+     * when it is done. Nothing is left to do if the session closed the
+     * connection itself during a login.
+     */
+    void connectionClosed() {
+	for (Frame frame : tracked.keySet()) {
+	    CompletableFuture<Void> written = tracked.remove(frame);
+	    if (written != null) {
+		written.completeExceptionally(new IOException("Connection closed"));
+	    }
+	}
+	synchronized (authLock) {
+	    if (closed) {
+		return;
+	    }
+	    closed = true;
+	    if (authenticating) {
+		return;
+	    }
+	}
+	cleanUp();
+    }
+
+    private void cleanUp() {
+	TimingWheel.Timeout check = idleCheck;
+	if (check != null) {
+	    check.cancel();
+	}
+	if (compressor != null) {
+	    compressor.close();
+	}
+	leaveAllRooms();
+	User u = server.getUsers().get(uname);
+	//Busy users are logged off too
+	if (u != null && (u.isOnline() || u.isBusy())) {
+	    logOff();
+	}
+    }
+
+    private void statusChanged() {
+	User u = server.getUsers().get(uname);
+	if (u != null) {
+	    server.getListener().statusChanged(u);
+	}
+    }
+
+    /**
+     * Sends a text message to the user connected to this session
+     *
+     * @param uname The sender of the message
+     * @param msg The message
+     * @throws IOException If the user could not be reached, possibly due to
+     * network issues
+     */
+    void sendMsg(String uname, String msg) throws IOException {
+	send(Frame.chat(uname, msg));
+    }
+
+    /**
+     * Sends a DISCONNECT command to the user with the username "userName"
+     *
+     * @param userName The username of the user to be disconnected from
+     * @throws IOException If the user could not be reached, possibly due to
+     * network issues
+     */
+    private void disconnectMe(String userName) throws IOException {
+	for (Session i : openConnections) {
+	    if (userName.equals(i.uname)) {
+		i.sendCommandFromServer(Command.DISCONNECT, uname);
+		break;
+	    }
+	}
+    }
+
+    /**
+     * Sends a complete list off all the users to the user of this session
+     *
+     * @throws IOException If the user could not be reached, possibly due to
+     * network issues
+     */
+    void sendUsers() throws IOException {
+	List<String> users = new ArrayList<>();
+	addAllUsers(users);
+	sendCommandFromServer(Command.USERLIST, users.toArray(new String[users.size()]));
+    }
+
+    /**
+     * Sends the changes in the user list since the version the client has, or
+     * the full list if the server no longer knows that version.
+     *
+     * @param since The version the client has
+     * @throws IOException If the connection is closed
+     */
+    private void sendUserDelta(String since) throws IOException {
+	UserDirectory.Delta delta = server.getUsers().changesSince(since);
+	List<String> users = new ArrayList<>();
+	users.add(delta.getVersion());
+	if (delta.isFull()) {
+	    users.add("FULL");
+	    addAllUsers(users);
+	} else {
+	    users.add("DELTA");
+	    for (Map.Entry<String, String> change : delta.getChanges().entrySet()) {
+		if (!change.getKey().equals(uname)) {
+		    users.add(change.getKey());
+		    users.add(change.getValue());
+		}
+	    }
+	}
+	sendCommandFromServer(Command.USERDELTA, users.toArray(new String[users.size()]));
+    }
+
+    private void addAllUsers(List<String> users) {
+	for (User u : server.getUsers()) {
+	    if (u.getUname().equals(uname)) {
+		continue;
+	    }
+	    users.add(u.getUname());
+	    users.add(u.getStatusCode());
+	}
+    }
+
+    private void sendCommandFromServer(Command command, String... lines) throws IOException {
+	send(Frame.command(command, lines));
+    }
+
+    /**
+     * Sends a frame to every other logged in user, on the fan-out lanes of the
+     * server, so this thread is free for the next command of this user.
+     */
+    private void sendUpdateToAll(Command command, String... lines) {
+	//Encoded once, every user gets the same bytes
+	Frame frame = Frame.command(command, lines).share();
+	String key = command == Command.STATUSUPDATE ? lines[0] : null;
+
+	server.getFanout().broadcast(server.getSessions().loggedIn(), user -> {
+	    if (user == this) {
+		return;
+	    }
+	    try {
+		user.send(key, frame);
+	    } catch (IOException e) {
+		//The connection is closed, the engine logs the user off
+	    }
+	});
+    }
+
+    /**
+     * Tells the other users about a new status of this user, through the
+     * presence batcher if there is one.
+     */
+    private void publishStatus(String status) {
+	server.getUsers().statusChanged(uname, status);
+	PresenceBatcher presence = server.getPresence();
+	if (presence != null) {
+	    presence.changed(uname, status);
+	} else {
+	    sendUpdateToAll(Command.STATUSUPDATE, uname, status);
+	}
+    }
+
+    private void parseCommand(Frame frame) throws IOException {
+	if (frame.isChat()) {
+	    routeChat(frame.arg(0), frame.arg(1));
+	    return;
+	}
+	if (frame.getCommand() == null) {
+	    System.err.println("Bad protocol");
+	    return;
+	}
+	switch (frame.getCommand()) {
+	    case HELLO:
+		int version = Protocol.negotiate(frame.arg(0));
+		List<String> reply = new ArrayList<>();
+		reply.add(Integer.toString(version));
+		Set<String> accepted = new HashSet<>();
+		for (int i = 1; i < frame.size(); i++) {
+		    String capability = frame.arg(i);
+		    if (capability.equals(Protocol.CAP_DEFLATE) && version < Protocol.VERSION_2) {
+			continue;
+		    }
+		    if (server.supports(capability)) {
+			accepted.add(capability);
+			reply.add(capability);
+		    }
+		}
+		capabilities = accepted;
+		if (accepted.contains(Protocol.CAP_DEFLATE) && compressor == null) {
+		    compressor = new FrameCompressor(server.getConfig().getCompressThreshold(), server.getStats());
+		}
+		sendCommandFromServer(Command.HELLO, reply.toArray(new String[0]));
+		decoder.setVersion(version);
+		decoder.setCompressor(compressor);
+		break;
+	    case REGUSER:
+	    case LOGIN:
+		authenticate(frame);
+		break;
+	    case GETUSERS:
+		if (frame.size() == 0) {
+		    sendUsers();
+		} else {
+		    sendUserDelta(frame.arg(0));
+		}
+		break;
+	    case LOGOFF:
+		logOff();
+		break;
+	    case CONNECT:
+		connectTo(frame.arg(0));
+		break;
+	    case RESPONSE:
+		sendResponse(frame.arg(0), frame.arg(1));
+		break;
+	    case DISCONNECT:
+		disconnectMe(frame.arg(0));
+		break;
+	    case STATUSUPDATE:
+		changeStatus(frame.arg(0));
+		break;
+	    case JOINROOM:
+		joinRoom(frame.join(0));
+		break;
+	    case LEAVEROOM:
+		leaveRoom(frame.join(0));
+		break;
+	    case ROOMPOST:
+		postToRoom(frame.arg(0), frame.join(1));
+		break;
+	    case PING:
+		sendCommandFromServer(Command.PONG);
+		break;
+	    case PONG:
+		//Only resets the idle time, done for every frame
+		break;
+	    default:
+		System.err.println("Bad protocol");
+	}
+    }
+
+    /**
+     * Sends a chat message to a connected partner. The message is passed on as
+     * is, in version 1 ";" is escaped by the codec and no longer lost.<br>
+     * A message to a user that is offline, or whose connection was just lost,
+     * is stored and delivered at the next login.
+     */
+    private void routeChat(String to, String msg) throws IOException {
+	if (uname == null) {
+	    return;
+	}
+	boolean lost = false;
+	for (Session partner : openConnections) {
+	    if (to.equals(partner.uname)) {
+		try {
+		    partner.sendMsg(uname, msg);
+		    return;
+		} catch (IOException e) {
+		    lost = true;
+		}
+		break;
+	    }
+	}
+	if (!lost && server.getSessions().get(to) != null) {
+	    sendCommandFromServer(Command.ERROR, to + " is not connected to you.");
+	} else if (!server.storeMessage(to, uname, msg)) {
+	    sendCommandFromServer(Command.ERROR, "Could not send message to " + to + ".");
+	}
+    }
+
+    private void joinRoom(String room) throws IOException {
+	if (uname == null) {
+	    return;
+	}
+	if (room.length() > MAX_ROOM_NAME || !Protocol.isValidName(room)) {
+	    sendCommandFromServer(Command.ERROR, "Room names must have 1 to " + MAX_ROOM_NAME + " characters, and no semicolons or line breaks.");
+	    return;
+	}
+	server.getRooms().join(room, this);
+	joinedRooms.add(room);
+	sendCommandFromServer(Command.JOINROOM, room);
+    }
+
+    private void leaveRoom(String room) throws IOException {
+	if (uname == null) {
+	    return;
+	}
+	server.getRooms().leave(room, this);
+	joinedRooms.remove(room);
+	sendCommandFromServer(Command.LEAVEROOM, room);
+    }
+
+    private void leaveAllRooms() {
+	for (String room : joinedRooms) {
+	    server.getRooms().leave(room, this);
+	}
+	joinedRooms.clear();
+    }
+
+    /**
+     * Sends a message to the other members of a room. The server does the
+     * sending on another thread, this thread only checks the membership.
+     */
+    private void postToRoom(String room, String msg) throws IOException {
+	if (uname == null) {
+	    return;
+	}
+	if (!server.getRooms().isMember(room, this)) {
+	    sendCommandFromServer(Command.ERROR, "You are not in the room " + room + ".");
+	    return;
+	}
+	server.postToRoom(this, room, msg);
+    }
+
+    private void connectTo(String s) throws IOException {
+	Session i = server.getSessions().get(s);
+	if (i != null) {
+	    try {
+		i.sendCommandFromServer(Command.CONNECT, uname);
+	    } catch (IOException e) {
+		sendCommandFromServer(Command.ERROR, "Could not connect to user");
+	    }
+	}
+    }
+
+    private void sendResponse(String userName, String answer) throws IOException {
+	Session s = server.getSessions().get(userName);
+	if (s == null) {
+	    sendCommandFromServer(Command.ERROR, "User not in online list");
+	    return;
+	}
+	if (answer.equals("YES")) {
+	    openConnections.add(s);
+	}
+	s.openConnections.add(this);
+	s.sendCommandFromServer(Command.RESPONSE, uname, answer);
+    }
+
+    /**
+     * Logs the user of this session off and tells the others. The session
+     * stays connected without a user, and can log in again.
+     */
+    private void logOff() {
+	User u = server.getUsers().get(uname);
+	if (u == null) {
+	    return;
+	}
+	publishStatus("0");
+	u.logOff();
+	leaveAllRooms();
+	server.getSessions().unbind(uname, this);
+	for (Session connection : openConnections) {
+	    for (int i = 0; i < connection.openConnections.size(); i++) {
+		if (uname.equals(connection.openConnections.get(i).uname)) {
+		    connection.openConnections.remove(i);
+
+		    break;
+		}
+	    }
+	}
+	server.getListener().statusChanged(u);
+	//A later login of the same user on another connection is not this session
+	uname = null;
+    }
+
+    /**
+     * Starts the idle timeout of this session, if the server has one. Called
+     * by the engine once the session is set up.<br>
+     * The timer does not move when frames arrive, that would cost a lot with
+     * many busy users. Every read only stores the time, and when the timer goes
+     * off it looks at the time of the last read and sets itself again from there.
+     * Users that asked for PING get one halfway, so a live user always has
+     * something to answer. Logged in users of old clients without PING get
+     * the longer legacy idle timeout.
+     */
+    void watchIdle() {
+	if (server.getIdleWheel() != null) {
+	    lastReceived = now();
+	    scheduleIdleCheck(server.getConfig().getIdleTimeoutMillis() / 2);
+	}
+    }
+
+    private void scheduleIdleCheck(long delayMillis) {
+	idleCheck = server.getIdleWheel().schedule(this::checkIdle, delayMillis);
+    }
+
+    /**
+     * Runs on the idle timer.
+     */
+    private void checkIdle() {
+	synchronized (authLock) {
+	    if (closed) {
+		return;
+	    }
+	}
+	long timeout = server.getConfig().getIdleTimeoutMillis();
+	boolean ping = hasCapability(Protocol.CAP_PING);
+	long idle = now() - lastReceived;
+	if (!ping && uname != null) {
+	    long legacy = server.getConfig().getLegacyIdleTimeoutMillis();
+	    if (legacy == 0) {
+		//Looked at again later, the user may log off
+		scheduleIdleCheck(timeout);
+		return;
+	    }
+	    timeout = legacy;
+	}
+	long pingAfter = ping ? timeout / 2 : timeout;
+	if (idle >= timeout) {
+	    server.getStats().sessionReaped();
+	    System.err.println("Nothing received from " + remoteAddress() + " in " + idle + " ms, closing the connection");
+	    try {
+		close();
+	    } catch (IOException e) {
+		System.err.println(e.getMessage());
+	    }
+	} else if (idle >= pingAfter) {
+	    try {
+		sendCommandFromServer(Command.PING);
+	    } catch (IOException e) {
+		//Closed, the engine cleans up
+		return;
+	    }
+	    scheduleIdleCheck(timeout - idle);
+	} else {
+	    scheduleIdleCheck(pingAfter - idle);
+	}
+    }
+
+    private static long now() {
+	return System.nanoTime() / 1000000;
+    }
+
+    /**
+     * Hands a LOGIN or REGUSER to the auth stage. Frames received until it is
+     * done are held. If the stage is full the user gets LOGINFAIL with the
+     * number of milliseconds to wait before trying again.
+     */
+    private void authenticate(Frame frame) {
+	synchronized (authLock) {
+	    authenticating = true;
+	}
+	if (!server.getAuthStage().submit(() -> authenticated(frame), e -> authFailed())) {
+	    try {
+		sendCommandFromServer(Command.LOGINFAIL, "The server is busy, please try again.",
+			Long.toString(server.getAuthStage().retryAfterMillis()));
+	    } catch (IOException e) {
+		//The connection is closed, the user is logged off by resume
+	    }
+	    resume();
+	}
+    }
+
+    /**
+     * Runs on the auth stage.
+     */
+    private void authenticated(Frame frame) {
+	try {
+	    if (frame.getCommand() == Command.REGUSER) {
+		register(frame.arg(0), frame.arg(1));
+	    } else {
+		login(frame.arg(0), frame.arg(1));
+	    }
+	} catch (IOException e) {
+	    //The connection is closed, the user is logged off by resume
+	} catch (RuntimeException e) {
+	    //A LOGIN or REGUSER without a username and password
+	    drop(e);
+	} finally {
+	    resume();
+	}
+    }
+
+    /**
+     * Runs on the auth stage if a login threw after its own error handling.
+     * Ends the login and closes the connection, and logs the user off if the
+     * engine already reported the connection closed.
+     */
+    private void authFailed() {
+	boolean clean;
+	synchronized (authLock) {
+	    held.clear();
+	    authenticating = false;
+	    clean = closed;
+	}
+	try {
+	    close();
+	} catch (IOException ex) {
+	    System.err.println("Could not close socket: " + ex.toString());
+	}
+	if (clean) {
+	    cleanUp();
+	}
+    }
+
+    private void register(String userName, String password) throws IOException {
+	if (server.regNewUser(userName, password)) {
+	    uname = userName;
+	    server.getSessions().bind(uname, this);
+	    publishStatus("+");
+	    sendCommandFromServer(Command.LOGINSUCCESS);
+	} else {
+	    sendCommandFromServer(Command.REGUSERFAIL);
+	}
+    }
+
+    private void login(String userName, String password) throws IOException {
+	try {
+	    logIn(userName, password);
+	    sendCommandFromServer(Command.LOGINSUCCESS);
+	    publishStatus("+");
+	    statusChanged();
+	    server.deliverStored(this);
+	} catch (LoginException e) {
+	    sendCommandFromServer(Command.LOGINFAIL, e.getMessage());
+	}
+    }
+
+    /**
+     * Handles the frames held during a login, in order. Stops at the next
+     * login, which goes on with the rest when it is done. Logs the user off
+     * if the connection is closed, or a held frame could not be handled.
+     */
+    private void resume() {
+	while (true) {
+	    Frame next;
+	    synchronized (authLock) {
+		if (closed) {
+		    held.clear();
+		    authenticating = false;
+		    next = null;
+		} else if (held.isEmpty()) {
+		    authenticating = false;
+		    return;
+		} else {
+		    next = held.remove(0);
+		}
+	    }
+	    if (next == null) {
+		cleanUp();
+		return;
+	    }
+	    if (next.getCommand() == Command.LOGIN || next.getCommand() == Command.REGUSER) {
+		authenticate(next);
+		return;
+	    }
+	    try {
+		parseCommand(next);
+	    } catch (IOException | RuntimeException e) {
+		drop(e);
+	    }
+	}
+    }
+
+    /**
+     * Closes the connection after an error during a login, where the engine
+     * does not see it. The login is still running, and logs the user off
+     * when it is done.
+     */
+    private void drop(Exception e) {
+	System.err.println("Error handling " + remoteAddress() + ": " + e);
+	synchronized (authLock) {
+	    closed = true;
+	}
+	try {
+	    close();
+	} catch (IOException ex) {
+	    System.err.println("Could not close socket: " + ex.toString());
+	}
+    }
+
+    private void logIn(String userName, String password) throws LoginException {
+	User u;
+	try {
+	    u = server.findUser(userName);
+	} catch (IOException e) {
+	    System.err.println("Could not read user store:\n" + e.toString());
+	    throw new LoginException("Could not read saved users, try again later.");
+	}
+	if (u == null) {
+	    throw new LoginException("Wrong username or password.");
+	}
+	//Throws exception if allready logged in or wrong username
+	u.login(password);
+	uname = userName;
+	server.getSessions().bind(uname, this);
+    }
+
+    /**
+     * Sets the status the user asked for. Only "+" and "-" can be set, a user
+     * goes offline by logging off. Ignored before login, like chat messages.
+     */
+    private void changeStatus(String status) throws IOException {
+	if (uname == null) {
+	    return;
+	}
+	if (!status.equals("+") && !status.equals("-")) {
+	    sendCommandFromServer(Command.ERROR, "Unknown status " + status + ", use + or -.");
+	    return;
+	}
+	publishStatus(status);
+	updateStatus(status);
+	statusChanged();
+    }
+
+    private void updateStatus(String status) {
+	User u = server.getUsers().get(uname);
+	if (u != null) {
+	    boolean busy = !status.equals("+");
+	    u.setStatus(busy ? Status.BUSY : Status.ONLINE);
+	}
+    }
+}
@@ -3,14 +3,15 @@ package model;
 /**
  * A class dedicated to safely store passwords username and the status of users.
  * Password is stored as a encrypted SHA256 string so you cant get the original
- * clear text password from this class. This is to ensure the users privacy
+ * clear text password from this class. This is to ensure the users privacy.
+ * The status can be read and changed from any thread.
  *
  * @author Member(1-2-3-4)
  */
 public class User {
 
     private final String uname, pswd;
-    private Status status;
+    private volatile Status status;
 
     /**
      * Initiates a new user, and stores the password and username. Status is set
@@ -78,6 +79,17 @@ public class User {
 	return status;
     }
 
+    /**
+     * Returns the status as sent in SMP, "+" for online, "-" for busy and "0"
+     * for offline.
+     *
+     * @return the status code
+     */
+    public String getStatusCode() {
+	Status s = status;
+	return s == Status.ONLINE ? "+" : s == Status.BUSY ? "-" : "0";
+    }
+
     /**
      * Sets status as true. Will throw exception if already logged in or if pswd
      * does not equals the stored password.
@@ -86,9 +98,9 @@ public class User {
      * @throws LoginException Thrown is user are already logged in or uses wrong
      * password
      */
-    public void login(String pswd) throws LoginException {
+    public synchronized void login(String pswd) throws LoginException {
 
-	if (status == Status.ONLINE) {
+	if (status != Status.OFFLINE) {
 	    throw new LoginException("Already logged in!");
 	}
 	if (!pswd.equals(this.pswd)) {
@@ -0,0 +1,130 @@
+package model;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import model.server.UserDirectory;
+import model.store.UserStore;
+
+/**
+ * Loads the saved users at startup, while the server already accepts connections.<br>
+ * The store is parsed in chunks on a few loader threads, and every chunk is added
+ * to the user directory in one call and given to the {@link ServerListener listener}
+ * as one batch.<br>
+ * A user that logs in or registers before its chunk is loaded is read from the
+ * store at once, see {@link #find(String) find}.
+ *
+ * @author Member(1-2-3-4)
+ */
+final class UserLoader implements Runnable {
+
+    private final Server server;
+    private final UserStore store;
+    private final UserDirectory users;
+    private final ServerListener listener;
+    private final int threads;
+    private final AtomicLong loaded = new AtomicLong();
+    private volatile long total = 0;
+    private volatile boolean done = false;
+
+    /**
+     * Creates the loader, {@link #start() start} begins loading.
+     *
+     * @param server The server
+     * @param store Where the users are saved
+     * @param threads Number of threads parsing the store
+     */
+    UserLoader(Server server, UserStore store, int threads) {
+	this.server = server;
+	this.store = store;
+	this.users = server.getUsers();
+	this.listener = server.getListener();
+	this.threads = threads;
+    }
+
+    /**
+     * Starts loading on a background thread and returns at once.
+     */
+    void start() {
+	Thread t = new Thread(this, "user-loader");
+	t.setDaemon(true);
+	t.start();
+    }
+
+    @Override
+    public void run() {
+	long start = System.nanoTime();
+	total = store.size();
+	AtomicInteger count = new AtomicInteger();
+	ExecutorService pool = Executors.newFixedThreadPool(threads, r -> {
+	    Thread t = new Thread(r, "user-load-" + count.getAndIncrement());
+	    t.setDaemon(true);
+	    return t;
+	});
+	try {
+	    store.load(pool, threads, this::chunkLoaded);
+	    System.out.println("Loaded " + loaded.get() + " users in "
+		    + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+	} catch (IOException | RuntimeException e) {
+	    if (server.isRunning()) {
+		System.err.println("Could not load users:\n" + e.toString());
+	    }
+	} finally {
+	    pool.shutdown();
+	    done = true;
+	    if (server.isRunning()) {
+		listener.loadProgress(loaded.get(), total, true);
+	    }
+	}
+    }
+
+    /**
+     * Returns the user with the given username. Until loading is done, a user
+     * not loaded yet is looked up in the store and added, so a login never waits
+     * for the rest of the users.
+     *
+     * @param uname Username, may be null
+     * @return the user, or null if no user is registered with that name
+     * @throws IOException If the store could not be read
+     */
+    User find(String uname) throws IOException {
+	User u = users.get(uname);
+	if (u != null || uname == null || done) {
+	    return u;
+	}
+	String pswd = store.lookup(uname);
+	if (pswd != null) {
+	    User stored = new User(uname, pswd, Status.OFFLINE);
+	    if (users.register(stored)) {
+		listener.usersAdded(Collections.singletonList(stored));
+	    }
+	}
+	return users.get(uname);
+    }
+
+    /**
+     * Called from the loader threads with one parsed chunk.
+     */
+    private void chunkLoaded(List<Map.Entry<String, String>> chunk) {
+	List<User> batch = new ArrayList<>(chunk.size());
+	for (Map.Entry<String, String> user : chunk) {
+	    batch.add(new User(user.getKey(), user.getValue(), Status.OFFLINE));
+	}
+	List<User> added = users.registerAll(batch);
+	long now = loaded.addAndGet(chunk.size());
+	if (!server.isRunning()) {
+	    return;
+	}
+	if (!added.isEmpty()) {
+	    listener.usersAdded(added);
+	}
+	listener.loadProgress(now, total, false);
+    }
+}
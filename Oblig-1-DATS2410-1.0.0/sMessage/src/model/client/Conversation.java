@@ -1,36 +1,226 @@
 package model.client;
 
-import java.util.ArrayList;
+import java.io.IOException;
+import java.util.List;
+import javafx.collections.FXCollections;
+import javafx.collections.ObservableList;
 
 /**
  * Stores {@link Message Messages} and links them to a {@link ClientUser ClientUser}. This allows multiple conversations by the client. 
  * Stores if the {@link Message Message} was from the Client using the application or from a connected user.
+ * The messages are an observable list, so a view shows new messages without reading the others again.
+ * With a {@link MessageHistory history}, only a window of at most {@link #MAX_WINDOW MAX_WINDOW} messages is
+ * kept in memory. The rest is read from the history when the window is moved with
+ * {@link #loadOlder(int) loadOlder} and {@link #loadNewer(int) loadNewer}.
  * @author Member(1-2-3-4)
  */
-public class Conversation {
+public final class Conversation {
+
+    /**
+     * Number of messages read when a conversation is opened or moved to the latest messages.
+     */
+    public static final int WINDOW = 200;
+    /**
+     * Most messages kept in memory.
+     */
+    public static final int MAX_WINDOW = 3 * WINDOW;
 
     private final ClientUser talkingWithUser;
-    private final ArrayList<Message> messages;
+    private final boolean room;
+    private final ObservableList<Message> messages;
+    private MessageHistory history;
+    //Number in the history of the first message in the window
+    private int first = 0;
 
     /**
-     * Constructor for the Conversation class.
+     * Constructor for the Conversation class. All messages are kept in memory.
      * @param talkingWithUser The conversation is between the owner of the object and the clientUser talkingWithUser.
      */
     public Conversation(ClientUser talkingWithUser) {
+	this(talkingWithUser, null);
+    }
+
+    /**
+     * Constructor for the Conversation class. The latest messages in the history are shown at once.
+     * @param talkingWithUser The conversation is between the owner of the object and the clientUser talkingWithUser.
+     * @param history The saved messages of the conversation, or null to keep all messages in memory.
+     */
+    public Conversation(ClientUser talkingWithUser, MessageHistory history) {
+	this(talkingWithUser, false, history);
+    }
+
+    private Conversation(ClientUser talkingWithUser, boolean room, MessageHistory history) {
 	this.talkingWithUser = talkingWithUser;
-	messages = new ArrayList<>();
+	this.room = room;
+	this.history = history;
+	messages = FXCollections.observableArrayList();
+	showLatest();
+    }
+
+    /**
+     * Creates the conversation of a chat room. The messages from the members have their usernames as sender.
+     * @param name The name of the room.
+     * @param history The saved messages of the room, or null to keep all messages in memory.
+     * @return the conversation.
+     */
+    public static Conversation room(String name, MessageHistory history) {
+	return new Conversation(new ClientUser(name, "+"), true, history);
     }
 
     /**
-     * Adds a message to the conversation.
+     * Returns true for the conversation of a chat room.
+     * @return if this is a room.
+     */
+    public boolean isRoom() {
+	return room;
+    }
+
+    /**
+     * Adds a message to the conversation. If the window is not at the latest
+     * messages, the message is only saved in the history.
      * @param message The message to be added.
      */
     public void addMessage(Message message) {
-	messages.add(message);
+	if (history == null) {
+	    messages.add(message);
+	    return;
+	}
+	boolean latest = isAtLatest();
+	try {
+	    history.append(message);
+	} catch (IOException e) {
+	    historyFailed(e);
+	    messages.add(message);
+	    return;
+	}
+	if (latest) {
+	    messages.add(message);
+	    if (messages.size() > MAX_WINDOW) {
+		drop(messages.size() - WINDOW, true);
+	    }
+	}
+    }
+
+    /**
+     * Reads older messages from the history into the start of the window.
+     * If the window gets too large, the newest messages are removed from memory.
+     * @param count Most messages to read.
+     * @return the number of messages added before the old first message.
+     */
+    public int loadOlder(int count) {
+	if (!hasOlder()) {
+	    return 0;
+	}
+	int from = Math.max(0, first - count);
+	List<Message> older;
+	try {
+	    older = history.read(from, first);
+	} catch (IOException e) {
+	    historyFailed(e);
+	    return 0;
+	}
+	messages.addAll(0, older);
+	first = from;
+	if (messages.size() > MAX_WINDOW) {
+	    drop(messages.size() - MAX_WINDOW, false);
+	}
+	return older.size();
+    }
+
+    /**
+     * Reads newer messages from the history into the end of the window.
+     * If the window gets too large, the oldest messages are removed from memory.
+     * @param count Most messages to read.
+     * @return the number of messages removed from the start of the window.
+     */
+    public int loadNewer(int count) {
+	if (isAtLatest()) {
+	    return 0;
+	}
+	int end = first + messages.size();
+	try {
+	    messages.addAll(history.read(end, Math.min(history.size(), end + count)));
+	} catch (IOException e) {
+	    historyFailed(e);
+	    return 0;
+	}
+	int removed = Math.max(0, messages.size() - MAX_WINDOW);
+	drop(removed, true);
+	return removed;
     }
 
     /**
-     * A getter for the username of the conversation partner.
+     * Moves the window to the latest messages, if it is not there already.
+     */
+    public void showLatest() {
+	if (history == null || (isAtLatest() && messages.size() <= WINDOW)) {
+	    return;
+	}
+	int size = history.size();
+	int from = Math.max(0, size - WINDOW);
+	try {
+	    messages.setAll(history.read(from, size));
+	    first = from;
+	} catch (IOException e) {
+	    historyFailed(e);
+	}
+    }
+
+    /**
+     * Returns true if there are older messages in the history than in the window.
+     * @return if older messages can be loaded.
+     */
+    public boolean hasOlder() {
+	return history != null && first > 0;
+    }
+
+    /**
+     * Returns true if the last message in the window is the latest message.
+     * @return if the window is at the latest message.
+     */
+    public boolean isAtLatest() {
+	return history == null || first + messages.size() >= history.size();
+    }
+
+    /**
+     * Closes the history. The messages in the window are kept.
+     */
+    public void close() {
+	if (history != null) {
+	    try {
+		history.close();
+	    } catch (IOException e) {
+		System.err.println("Could not close history: " + e.getMessage());
+	    }
+	    history = null;
+	}
+    }
+
+    /**
+     * Removes messages from the start or the end of the window.
+     */
+    private void drop(int count, boolean oldest) {
+	if (count <= 0) {
+	    return;
+	}
+	if (oldest) {
+	    messages.remove(0, count);
+	    first += count;
+	} else {
+	    messages.remove(messages.size() - count, messages.size());
+	}
+    }
+
+    /**
+     * Keeps the messages in memory from now on, when the history can not be used.
+     */
+    private void historyFailed(IOException e) {
+	System.err.println("History of " + getTalkingWithUsername() + " failed: " + e.getMessage());
+	close();
+    }
+
+    /**
+     * A getter for the username of the conversation partner, or the name of the room.
      * @return THe string talkingWithUser.
      */
     public String getTalkingWithUsername() {
@@ -46,17 +236,22 @@ public class Conversation {
     }
 
     /**
-     * Getter for all the messages.
-     * @return all the messages in an array.
+     * Getter for all the messages. Must only be changed on the JavaFX thread.
+     * @return all the messages, oldest first.
      */
-    public ArrayList<Message> getMessages() {
+    public ObservableList<Message> getMessages() {
 	return messages;
     }
 
     @Override
     public boolean equals(Object obj) {
-        return obj instanceof Conversation &&
+        return obj instanceof Conversation && ((Conversation) obj).room == room &&
                 ((Conversation) obj).getTalkingWithUsername().equals(getTalkingWithUsername());
     }
 
+    @Override
+    public int hashCode() {
+        return 31 * getTalkingWithUsername().hashCode() + (room ? 1 : 0);
+    }
+
 }
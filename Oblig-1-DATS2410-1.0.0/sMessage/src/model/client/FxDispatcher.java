@@ -0,0 +1,79 @@
+package model.client;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import javafx.application.Platform;
+
+/**
+ * Hands items from background threads to the JavaFX thread in batches.
+ * Items are queued, and one runnable on the JavaFX thread handles all items
+ * queued so far, instead of one runnable per item.<br>
+ * A runnable stops after {@link #MAX_ITEMS MAX_ITEMS} items or {@link #MAX_MILLIS MAX_MILLIS} ms
+ * and leaves the rest for the next one, so input and drawing are not held up during a flood.
+ *
+ * @author Member(1-2-3-4)
+ * @param <T> The type of the items
+ */
+public class FxDispatcher<T> {
+
+    /**
+     * Most items handled by one runnable.
+     */
+    public static final int MAX_ITEMS = 500;
+    /**
+     * Most time used by one runnable, in milliseconds.
+     */
+    public static final long MAX_MILLIS = 8;
+
+    private final Queue<T> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+    private final Consumer<T> handler;
+
+    /**
+     * Creates a dispatcher.
+     *
+     * @param handler Called on the JavaFX thread with every item, in the order they were submitted
+     */
+    public FxDispatcher(Consumer<T> handler) {
+	this.handler = handler;
+    }
+
+    /**
+     * Queues an item. Can be called from any thread.
+     *
+     * @param item The item
+     */
+    public void submit(T item) {
+	queue.add(item);
+	schedule();
+    }
+
+    private void schedule() {
+	if (scheduled.compareAndSet(false, true)) {
+	    Platform.runLater(this::drain);
+	}
+    }
+
+    private void drain() {
+	scheduled.set(false);
+	long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(MAX_MILLIS);
+	for (int i = 0; i < MAX_ITEMS && System.nanoTime() < deadline; i++) {
+	    T item = queue.poll();
+	    if (item == null) {
+		return;
+	    }
+	    //The handler may open a dialog and wait, the next runnable then goes on with the queue
+	    if (!queue.isEmpty()) {
+		schedule();
+	    }
+	    try {
+		handler.accept(item);
+	    } catch (RuntimeException e) {
+		e.printStackTrace();
+	    }
+	}
+    }
+}
@@ -0,0 +1,177 @@
+package model.client;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The local history of one {@link Conversation conversation}, kept in two append only files.
+ * The log has every message as sender and text. The index has the offset of every
+ * message in the log as 8 bytes, so any range of messages is read with one read of
+ * the index and one of the log, without reading the rest of the history.<br>
+ * A message is written to the log before its offset is written to the index, so a
+ * message cut off by a crash is not in the index, and is removed when the history is opened.
+ *
+ * @author Member(1-2-3-4)
+ */
+public class MessageHistory implements Closeable {
+
+    private final RandomAccessFile log;
+    private final RandomAccessFile index;
+    private int size;
+
+    /**
+     * Returns the directory with the histories of a user, in the home directory.
+     *
+     * @param uname The username of the user of this client
+     * @return the directory
+     */
+    public static File directoryOf(String uname) {
+	File home = new File(System.getProperty("user.home"), ".smessage");
+	return new File(new File(home, "history"), fileName("u-", uname));
+    }
+
+    /**
+     * Opens the history of a conversation with a user, and creates the files if needed.
+     *
+     * @param dir The directory with the histories of this user
+     * @param partner The username of the other user in the conversation
+     * @throws IOException If the files could not be opened
+     */
+    public MessageHistory(File dir, String partner) throws IOException {
+	this(dir, partner, false);
+    }
+
+    /**
+     * Opens the history of a conversation, and creates the files if needed.
+     *
+     * @param dir The directory with the histories of this user
+     * @param partner The username of the other user, or the name of the room
+     * @param room True for the history of a chat room
+     * @throws IOException If the files could not be opened
+     */
+    public MessageHistory(File dir, String partner, boolean room) throws IOException {
+	if (!dir.isDirectory() && !dir.mkdirs()) {
+	    throw new IOException("Could not create " + dir);
+	}
+	String name = fileName(room ? "r-" : "u-", partner);
+	log = new RandomAccessFile(new File(dir, name + ".log"), "rw");
+	index = new RandomAccessFile(new File(dir, name + ".idx"), "rw");
+	size = (int) (index.length() / 8);
+	long end = 0;
+	while (size > 0) {
+	    end = recordEnd(offset(size - 1));
+	    if (end <= log.length()) {
+		break;
+	    }
+	    size--;
+	    end = 0;
+	}
+	index.setLength(size * 8L);
+	log.setLength(end);
+    }
+
+    /**
+     * Returns the number of messages in the history.
+     *
+     * @return number of messages
+     */
+    public int size() {
+	return size;
+    }
+
+    /**
+     * Adds a message at the end of the history.
+     *
+     * @param message The message
+     * @throws IOException If the message could not be written
+     */
+    public void append(Message message) throws IOException {
+	byte[] text = message.getMessage().getBytes(StandardCharsets.UTF_8);
+	ByteArrayOutputStream bytes = new ByteArrayOutputStream(text.length + 32);
+	DataOutputStream out = new DataOutputStream(bytes);
+	out.writeUTF(message.getFrom());
+	out.writeInt(text.length);
+	out.write(text);
+	long offset = log.length();
+	log.seek(offset);
+	log.write(bytes.toByteArray());
+	index.seek(size * 8L);
+	index.writeLong(offset);
+	size++;
+    }
+
+    /**
+     * Reads a range of messages.
+     *
+     * @param from Number of the first message, 0 is the oldest
+     * @param to Number after the last message
+     * @return the messages, oldest first
+     * @throws IOException If the history could not be read
+     */
+    public List<Message> read(int from, int to) throws IOException {
+	List<Message> messages = new ArrayList<>(Math.max(0, to - from));
+	if (from >= to) {
+	    return messages;
+	}
+	long start = offset(from);
+	long stop = to < size ? offset(to) : log.length();
+	byte[] block = new byte[(int) (stop - start)];
+	log.seek(start);
+	log.readFully(block);
+	DataInputStream in = new DataInputStream(new ByteArrayInputStream(block));
+	for (int i = from; i < to; i++) {
+	    String sender = in.readUTF();
+	    byte[] text = new byte[in.readInt()];
+	    in.readFully(text);
+	    messages.add(new Message(sender, new String(text, StandardCharsets.UTF_8)));
+	}
+	return messages;
+    }
+
+    @Override
+    public void close() throws IOException {
+	log.close();
+	index.close();
+    }
+
+    private static String fileName(String prefix, String name) {
+	try {
+	    return prefix + URLEncoder.encode(name, "UTF-8");
+	} catch (UnsupportedEncodingException e) {
+	    throw new IllegalStateException(e);
+	}
+    }
+
+    private long offset(int n) throws IOException {
+	index.seek(n * 8L);
+	return index.readLong();
+    }
+
+    /**
+     * Returns where the record at an offset ends, or a position after the end
+     * of the log if the record is cut off.
+     */
+    private long recordEnd(long offset) throws IOException {
+	if (offset + 2 > log.length()) {
+	    return Long.MAX_VALUE;
+	}
+	log.seek(offset);
+	long textLength = offset + 2 + log.readUnsignedShort();
+	if (textLength + 4 > log.length()) {
+	    return Long.MAX_VALUE;
+	}
+	log.seek(textLength);
+	return textLength + 4 + log.readInt();
+    }
+}
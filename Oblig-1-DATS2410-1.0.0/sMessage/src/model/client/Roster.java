@@ -0,0 +1,216 @@
+package model.client;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javafx.collections.FXCollections;
+import javafx.collections.ObservableList;
+
+/**
+ * The users known by the client, split in users without a conversation and
+ * {@link Conversation conversations}. The lists are shown by the view, and
+ * the maps find a user or a conversation by username without searching the lists.<br>
+ * The lists must only be changed through the roster, and only on the JavaFX thread.
+ * A username is either in the user list or has a conversation, never both.
+ *
+ * @author Member(1-2-3-4)
+ */
+public class Roster {
+
+    private final ObservableList<ClientUser> users = FXCollections.observableArrayList();
+    private final ObservableList<Conversation> conversations = FXCollections.observableArrayList();
+    //Username to position in the user list
+    private Map<String, Integer> userIndex = new HashMap<>();
+    private final Map<String, Conversation> conversationIndex = new HashMap<>();
+    //Rooms have their own names, a room can have the name of a user
+    private final Map<String, Conversation> roomIndex = new HashMap<>();
+
+    /**
+     * Returns the users without a conversation. The order is not kept when users are removed.
+     *
+     * @return the users
+     */
+    public ObservableList<ClientUser> getUsers() {
+	return users;
+    }
+
+    /**
+     * Returns the conversations, in the order they were opened.
+     *
+     * @return the conversations
+     */
+    public ObservableList<Conversation> getConversations() {
+	return conversations;
+    }
+
+    /**
+     * Returns the user without a conversation with this username.
+     *
+     * @param uname The username
+     * @return the user, or null if it is not in the user list
+     */
+    public ClientUser getUser(String uname) {
+	Integer idx = userIndex.get(uname);
+	return idx == null ? null : users.get(idx);
+    }
+
+    /**
+     * Returns the conversation with this user.
+     *
+     * @param uname The username
+     * @return the conversation, or null if there is no conversation with this user
+     */
+    public Conversation getConversation(String uname) {
+	return conversationIndex.get(uname);
+    }
+
+    /**
+     * Returns the conversation of a chat room.
+     *
+     * @param room Name of the room
+     * @return the conversation, or null if the user is not in the room
+     */
+    public Conversation getRoom(String room) {
+	return roomIndex.get(room);
+    }
+
+    /**
+     * Builds a new user list and its index. Does not use the roster, so it can be
+     * done on any thread, and then given to {@link #setUsers(UserList) setUsers}.
+     *
+     * @param all All users, a username seen twice is only added once
+     * @return the user list
+     */
+    public static UserList prepareUsers(List<ClientUser> all) {
+	List<ClientUser> list = new ArrayList<>(all.size());
+	Map<String, Integer> index = new HashMap<>(all.size() * 4 / 3 + 1);
+	for (ClientUser user : all) {
+	    if (index.putIfAbsent(user.getUserName(), list.size()) == null) {
+		list.add(user);
+	    }
+	}
+	return new UserList(list, index);
+    }
+
+    /**
+     * Replaces the user list. Users with a conversation are left out.
+     *
+     * @param all The new users from {@link #prepareUsers(List) prepareUsers}, taken over by the roster
+     */
+    public void setUsers(UserList all) {
+	userIndex = all.index;
+	users.setAll(all.list);
+	for (String uname : conversationIndex.keySet()) {
+	    removeUser(uname);
+	}
+    }
+
+    /**
+     * Adds a user to the user list, unless the username is already known.
+     *
+     * @param user The user
+     * @return true if the user was added
+     */
+    public boolean addUser(ClientUser user) {
+	String uname = user.getUserName();
+	if (userIndex.containsKey(uname) || conversationIndex.containsKey(uname)) {
+	    return false;
+	}
+	userIndex.put(uname, users.size());
+	users.add(user);
+	return true;
+    }
+
+    /**
+     * Removes a user from the user list. The last user takes its place, so
+     * nothing is moved in the list.
+     *
+     * @param uname The username
+     * @return the removed user, or null if it was not in the user list
+     */
+    public ClientUser removeUser(String uname) {
+	Integer idx = userIndex.remove(uname);
+	if (idx == null) {
+	    return null;
+	}
+	int last = users.size() - 1;
+	ClientUser user = users.get(idx);
+	if (idx != last) {
+	    ClientUser moved = users.get(last);
+	    users.set(idx, moved);
+	    userIndex.put(moved.getUserName(), idx);
+	}
+	users.remove(last);
+	return user;
+    }
+
+    /**
+     * Adds a conversation at the end of the conversation list.
+     *
+     * @param conversation The conversation with a user or a room, the user must not be in the user list
+     * @return true if the conversation was added, false if there already is one with this user or room
+     */
+    public boolean addConversation(Conversation conversation) {
+	String name = conversation.getTalkingWithUsername();
+	Map<String, Conversation> index = conversation.isRoom() ? roomIndex : conversationIndex;
+	if (index.containsKey(name)) {
+	    return false;
+	}
+	index.put(name, conversation);
+	conversations.add(conversation);
+	return true;
+    }
+
+    /**
+     * Removes the conversation with a user. The conversation list keeps its
+     * order, it is short compared to the user list.
+     *
+     * @param uname The username
+     * @return the removed conversation, or null if there was no conversation with this user
+     */
+    public Conversation removeConversation(String uname) {
+	Conversation conversation = conversationIndex.remove(uname);
+	if (conversation != null) {
+	    conversations.remove(conversation);
+	}
+	return conversation;
+    }
+
+    /**
+     * Removes the conversation of a chat room.
+     *
+     * @param room Name of the room
+     * @return the removed conversation, or null if the user was not in the room
+     */
+    public Conversation removeRoom(String room) {
+	Conversation conversation = roomIndex.remove(room);
+	if (conversation != null) {
+	    conversations.remove(conversation);
+	}
+	return conversation;
+    }
+
+    /**
+     * A user list with its index, made by {@link #prepareUsers(List) prepareUsers}.
+     */
+    public static final class UserList {
+
+	private final List<ClientUser> list;
+	private final Map<String, Integer> index;
+
+	private UserList(List<ClientUser> list, Map<String, Integer> index) {
+	    this.list = list;
+	    this.index = index;
+	}
+
+	/**
+	 * Returns the number of users.
+	 *
+	 * @return number of users
+	 */
+	public int size() {
+	    return list.size();
+	}
+    }
+}
@@ -0,0 +1,139 @@
+package model.client;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The user list from the last login, kept in the history directory of the user
+ * with the version the server gave it. The next login asks for the changes since
+ * that version, and only gets the whole list again if the server was restarted or
+ * too much has changed.<br>
+ * The list is only used for the same server, and is written to a new file that
+ * replaces the old one, so a crash leaves either the old or the new list.
+ *
+ * @author Member(1-2-3-4)
+ */
+public class UserListCache {
+
+    private static final String FILE_NAME = "users.list";
+
+    private final File file;
+    private final String server;
+    private final Map<String, String> users = new LinkedHashMap<>();
+    private String version = "-";
+
+    /**
+     * Reads the user list saved for this server, if there is one.
+     *
+     * @param dir The directory with the histories of this user
+     * @param server The address and port of the server
+     */
+    public UserListCache(File dir, String server) {
+	this.file = new File(dir, FILE_NAME);
+	this.server = server;
+	if (!file.isFile()) {
+	    return;
+	}
+	try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+	    if (!in.readUTF().equals(server)) {
+		return;
+	    }
+	    String saved = in.readUTF();
+	    for (int i = in.readInt(); i > 0; i--) {
+		users.put(in.readUTF(), in.readUTF());
+	    }
+	    version = saved;
+	} catch (IOException e) {
+	    System.err.println("Could not read " + file + ": " + e);
+	    users.clear();
+	}
+    }
+
+    /**
+     * Returns the version to send with GETUSERS, "-" if there is no saved list.
+     *
+     * @return the version
+     */
+    public synchronized String getVersion() {
+	return version;
+    }
+
+    /**
+     * Returns the saved users, for the view to show before the server answers.
+     *
+     * @return the users, or null if there are none
+     */
+    public synchronized Roster.UserList getUsers() {
+	if (users.isEmpty()) {
+	    return null;
+	}
+	List<ClientUser> list = new ArrayList<>(users.size());
+	for (Map.Entry<String, String> user : users.entrySet()) {
+	    list.add(new ClientUser(user.getKey(), user.getValue()));
+	}
+	return Roster.prepareUsers(list);
+    }
+
+    /**
+     * Replaces the list with the whole list from the server, and saves it.
+     *
+     * @param version The version of the list
+     * @param all Username to status of every user
+     */
+    public synchronized void replace(String version, Map<String, String> all) {
+	users.clear();
+	users.putAll(all);
+	save(version);
+    }
+
+    /**
+     * Applies the changes since the saved version, and saves the list.
+     *
+     * @param version The version after the changes
+     * @param changes Username to new status
+     */
+    public synchronized void apply(String version, Map<String, String> changes) {
+	users.putAll(changes);
+	save(version);
+    }
+
+    private void save(String version) {
+	this.version = version;
+	File dir = file.getParentFile();
+	if (!dir.isDirectory() && !dir.mkdirs()) {
+	    System.err.println("Could not create " + dir);
+	    return;
+	}
+	File tmp = new File(dir, FILE_NAME + ".tmp");
+	try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+	    out.writeUTF(server);
+	    out.writeUTF(version);
+	    out.writeInt(users.size());
+	    for (Map.Entry<String, String> user : users.entrySet()) {
+		out.writeUTF(user.getKey());
+		out.writeUTF(user.getValue());
+	    }
+	} catch (IOException e) {
+	    System.err.println("Could not save the user list: " + e);
+	    return;
+	}
+	try {
+	    Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+		    StandardCopyOption.ATOMIC_MOVE);
+	} catch (IOException e) {
+	    System.err.println("Could not save the user list: " + e);
+	}
+    }
+}
@@ -0,0 +1,170 @@
+package model.protocol;
+
+import model.Command;
+
+/**
+ * One decoded SMP frame, the same for both protocol versions.
+ * A frame is either a command (TYPE 0) with arguments, or a chat message (TYPE 1)
+ * with the arguments username and message.<br>
+ * A frame sent to many users can be {@link #share() shared}, it is then encoded
+ * once per protocol version and every user gets the same bytes.
+ *
+ * @author Member(1-2-3-4)
+ */
+public final class Frame {
+
+    private static final String[] NO_ARGS = new String[0];
+
+    private final boolean chat;
+    private final Command command;
+    private final String[] args;
+    private final boolean shared;
+    //Encoded bytes of a shared frame, set by the codec the first time it is encoded
+    private volatile byte[] version1;
+    private volatile byte[] version2;
+    //Version 2 bytes after compression, set by the first compressor that sends it
+    private volatile byte[] compressed;
+
+    private Frame(boolean chat, Command command, String[] args, boolean shared) {
+	this.chat = chat;
+	this.command = command;
+	this.args = args == null ? NO_ARGS : args;
+	this.shared = shared;
+    }
+
+    /**
+     * Creates a command frame (TYPE 0).
+     *
+     * @param command The command, null if the command is unknown
+     * @param args The arguments
+     * @return the frame
+     */
+    public static Frame command(Command command, String... args) {
+	return new Frame(false, command, args, false);
+    }
+
+    /**
+     * Creates a chat message frame (TYPE 1).
+     *
+     * @param uname From the client: the receiver. From the server: the sender.
+     * @param message The message
+     * @return the frame
+     */
+    public static Frame chat(String uname, String message) {
+	return new Frame(true, null, new String[]{uname, message}, false);
+    }
+
+    /**
+     * Returns a shared frame with the same content. Used for frames sent to
+     * many users, like status updates and room posts. The encoded bytes are
+     * kept with the frame and must never be changed.
+     *
+     * @return the shared frame, or this frame if it is already shared
+     */
+    public Frame share() {
+	return shared ? this : new Frame(chat, command, args, true);
+    }
+
+    /**
+     * Returns true if the frame is encoded once and shared by every user it is sent to.
+     *
+     * @return if the frame is shared
+     */
+    public boolean isShared() {
+	return shared;
+    }
+
+    byte[] encoded(int version) {
+	return version == Protocol.VERSION_2 ? version2 : version1;
+    }
+
+    byte[] compressed() {
+	return compressed;
+    }
+
+    void setCompressed(byte[] bytes) {
+	compressed = bytes;
+    }
+
+    void setEncoded(int version, byte[] bytes) {
+	if (version == Protocol.VERSION_2) {
+	    version2 = bytes;
+	} else {
+	    version1 = bytes;
+	}
+    }
+
+    /**
+     * Returns true for a chat message (TYPE 1).
+     *
+     * @return if this is a chat message
+     */
+    public boolean isChat() {
+	return chat;
+    }
+
+    /**
+     * Returns the command of a command frame.
+     *
+     * @return the command, or null for chat messages and unknown commands
+     */
+    public Command getCommand() {
+	return command;
+    }
+
+    /**
+     * Returns the number of arguments.
+     *
+     * @return number of arguments
+     */
+    public int size() {
+	return args.length;
+    }
+
+    /**
+     * Returns an argument.
+     *
+     * @param i index of the argument
+     * @return the argument
+     * @throws IllegalArgumentException If the argument is missing
+     */
+    public String arg(int i) {
+	if (i >= args.length) {
+	    throw new IllegalArgumentException("Bad protocol: missing argument " + i + " in " + this);
+	}
+	return args[i];
+    }
+
+    /**
+     * Returns the arguments from index "from" joined with ";", as version 1 sends them.
+     *
+     * @param from index of the first argument
+     * @return the joined arguments, empty if there are none
+     */
+    public String join(int from) {
+	StringBuilder sb = new StringBuilder();
+	for (int i = from; i < args.length; i++) {
+	    sb.append(args[i]);
+	    if (i != args.length - 1) {
+		sb.append(";");
+	    }
+	}
+	return sb.toString();
+    }
+
+    String[] args() {
+	return args;
+    }
+
+    /**
+     * Returns the frame as a version 1 line, without escaping. Used for logging.
+     */
+    @Override
+    public String toString() {
+	StringBuilder sb = new StringBuilder(chat ? "TYPE 1" : "TYPE 0;" + command);
+	for (String arg : args) {
+	    sb.append(";").append(arg);
+	}
+	return sb.toString();
+    }
+}
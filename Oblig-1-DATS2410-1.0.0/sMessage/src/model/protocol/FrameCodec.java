@@ -0,0 +1,307 @@
+package model.protocol;
+
+import java.nio.charset.StandardCharsets;
+import model.Command;
+
+/**
+ * Encodes {@link Frame frames} to bytes and decodes single frames, for both
+ * {@link Protocol protocol} versions.<br>
+ * Decoding works directly on the received bytes with a cursor. The only objects
+ * created are the frame, its argument array and one String per argument.
+ *
+ * @author Member(1-2-3-4)
+ */
+public final class FrameCodec {
+
+    private static final Command[] COMMANDS = Command.values();
+    private static final byte[][] COMMAND_NAMES = new byte[COMMANDS.length][];
+    private static final byte[] TYPE = "TYPE ".getBytes(StandardCharsets.US_ASCII);
+
+    static {
+	for (Command c : COMMANDS) {
+	    COMMAND_NAMES[c.ordinal()] = c.name().getBytes(StandardCharsets.US_ASCII);
+	}
+    }
+
+    private FrameCodec() {
+    }
+
+    /**
+     * Encodes a frame, including the line terminator or length prefix. A
+     * {@link Frame#share() shared} frame is only encoded the first time for
+     * each version, after that the same bytes are returned.
+     *
+     * @param frame The frame
+     * @param version The protocol version
+     * @return the bytes to send, must not be changed
+     */
+    public static byte[] encode(Frame frame, int version) {
+	if (!frame.isShared()) {
+	    return encodeFrame(frame, version);
+	}
+	byte[] bytes = frame.encoded(version);
+	if (bytes == null) {
+	    //Two writers may both encode it, they get equal bytes
+	    bytes = encodeFrame(frame, version);
+	    frame.setEncoded(version, bytes);
+	}
+	return bytes;
+    }
+
+    private static byte[] encodeFrame(Frame frame, int version) {
+	if (version == Protocol.VERSION_2) {
+	    return encodeV2(frame);
+	}
+	return encodeV1(frame);
+    }
+
+    private static byte[] encodeV1(Frame frame) {
+	String[] args = frame.args();
+	StringBuilder sb = new StringBuilder();
+	if (frame.isChat()) {
+	    sb.append("TYPE 1;").append(escape(args[0])).append(";").append(escape(args[1]));
+	} else {
+	    //Every argument is escaped, a version 2 user may have sent any text
+	    sb.append("TYPE 0;").append(frame.getCommand());
+	    for (String arg : args) {
+		sb.append(";").append(escape(arg));
+	    }
+	}
+	sb.append("\n");
+	return sb.toString().getBytes(Protocol.V1_CHARSET);
+    }
+
+    private static byte[] encodeV2(Frame frame) {
+	String[] args = frame.args();
+	byte[][] encoded = new byte[args.length][];
+	int payload = 1;
+	for (int i = 0; i < args.length; i++) {
+	    encoded[i] = args[i].getBytes(Protocol.V2_CHARSET);
+	    payload += varintSize(encoded[i].length) + encoded[i].length;
+	}
+	byte[] out = new byte[varintSize(payload) + payload];
+	int pos = writeVarint(out, 0, payload);
+	out[pos++] = (byte) opcode(frame);
+	for (byte[] bytes : encoded) {
+	    pos = writeVarint(out, pos, bytes.length);
+	    System.arraycopy(bytes, 0, out, pos, bytes.length);
+	    pos += bytes.length;
+	}
+	return out;
+    }
+
+    private static int opcode(Frame frame) {
+	return frame.isChat() ? 0 : frame.getCommand().ordinal() + 1;
+    }
+
+    /**
+     * Decodes one version 1 line. Empty fields at the end of a command are
+     * ignored, like the old String.split based parser did.
+     *
+     * @param buf buffer holding the line
+     * @param off start of the line
+     * @param len length of the line, without line terminator
+     * @return the frame
+     * @throws IllegalArgumentException If the line is not a SMP frame
+     */
+    public static Frame decodeV1(byte[] buf, int off, int len) {
+	int end = off + len;
+	int pos = off + TYPE.length;
+	if (pos + 1 >= end || !regionEquals(buf, off, TYPE) || buf[pos + 1] != ';') {
+	    throw new IllegalArgumentException("Bad protocol");
+	}
+	byte type = buf[pos];
+	pos += 2;
+	if (type == '1') {
+	    int sep = indexOf(buf, pos, end, (byte) ';');
+	    if (sep == -1) {
+		sep = end;
+	    }
+	    String uname = field(buf, pos, sep);
+	    int body = Math.min(sep + 1, end);
+	    String message = new String(buf, body, end - body, Protocol.V1_CHARSET);
+	    if (indexOf(buf, body, end, (byte) '&') != -1) {
+		message = unescape(message);
+	    }
+	    return Frame.chat(uname, message);
+	}
+	if (type != '0') {
+	    throw new IllegalArgumentException("Bad protocol");
+	}
+	while (end > pos && buf[end - 1] == ';') {
+	    end--;
+	}
+	int sep = indexOf(buf, pos, end, (byte) ';');
+	if (sep == -1) {
+	    sep = end;
+	}
+	Command command = commandByName(buf, pos, sep - pos);
+	int count = 0;
+	for (int i = sep; i < end; i++) {
+	    if (buf[i] == ';') {
+		count++;
+	    }
+	}
+	String[] args = new String[count];
+	pos = sep + 1;
+	for (int i = 0; i < count; i++) {
+	    sep = indexOf(buf, pos, end, (byte) ';');
+	    if (sep == -1) {
+		sep = end;
+	    }
+	    args[i] = field(buf, pos, sep);
+	    pos = sep + 1;
+	}
+	return Frame.command(command, args);
+    }
+
+    /**
+     * Decodes the payload of one version 2 frame, the bytes after the length prefix.
+     *
+     * @param buf buffer holding the payload
+     * @param off start of the payload
+     * @param len length of the payload
+     * @return the frame
+     * @throws IllegalArgumentException If the payload is not a SMP frame
+     */
+    public static Frame decodeV2(byte[] buf, int off, int len) {
+	if (len < 1) {
+	    throw new IllegalArgumentException("Bad protocol: empty frame");
+	}
+	int end = off + len;
+	int opcode = buf[off] & 0xFF;
+	int count = 0;
+	for (int pos = off + 1; pos < end; count++) {
+	    long lenAndPos = readVarint(buf, pos, end);
+	    if (lenAndPos < 0) {
+		throw new IllegalArgumentException("Bad protocol: argument length cut off");
+	    }
+	    int argLen = (int) (lenAndPos >>> 32);
+	    pos = (int) lenAndPos;
+	    if (argLen > end - pos) {
+		throw new IllegalArgumentException("Bad protocol: argument longer than frame");
+	    }
+	    pos += argLen;
+	}
+	String[] args = new String[count];
+	int pos = off + 1;
+	for (int i = 0; i < count; i++) {
+	    long lenAndPos = readVarint(buf, pos, end);
+	    int argLen = (int) (lenAndPos >>> 32);
+	    pos = (int) lenAndPos;
+	    args[i] = new String(buf, pos, argLen, Protocol.V2_CHARSET);
+	    pos += argLen;
+	}
+	if (opcode == 0) {
+	    if (count != 2) {
+		throw new IllegalArgumentException("Bad protocol: chat message needs two arguments");
+	    }
+	    return Frame.chat(args[0], args[1]);
+	}
+	return Frame.command(opcode <= COMMANDS.length ? COMMANDS[opcode - 1] : null, args);
+    }
+
+    private static String field(byte[] buf, int from, int to) {
+	String field = new String(buf, from, to - from, Protocol.V1_CHARSET);
+	return indexOf(buf, from, to, (byte) '&') == -1 ? field : unescape(field);
+    }
+
+    private static Command commandByName(byte[] buf, int off, int len) {
+	for (int i = 0; i < COMMAND_NAMES.length; i++) {
+	    byte[] name = COMMAND_NAMES[i];
+	    if (name.length == len && regionEquals(buf, off, name)) {
+		return COMMANDS[i];
+	    }
+	}
+	return null;
+    }
+
+    private static boolean regionEquals(byte[] buf, int off, byte[] expected) {
+	if (off + expected.length > buf.length) {
+	    return false;
+	}
+	for (int i = 0; i < expected.length; i++) {
+	    if (buf[off + i] != expected[i]) {
+		return false;
+	    }
+	}
+	return true;
+    }
+
+    private static int indexOf(byte[] buf, int from, int end, byte b) {
+	for (int i = from; i < end; i++) {
+	    if (buf[i] == b) {
+		return i;
+	    }
+	}
+	return -1;
+    }
+
+    /**
+     * Writes an unsigned varint, 7 bits per byte, lowest bits first.
+     *
+     * @param out the array, with room for {@link #varintSize(int) varintSize(value)} bytes
+     * @param pos where to write
+     * @param value the value, not negative
+     * @return the position after the varint
+     */
+    static int writeVarint(byte[] out, int pos, int value) {
+	while ((value & ~0x7F) != 0) {
+	    out[pos++] = (byte) ((value & 0x7F) | 0x80);
+	    value >>>= 7;
+	}
+	out[pos++] = (byte) value;
+	return pos;
+    }
+
+    /**
+     * Returns the number of bytes used by a varint.
+     *
+     * @param value the value, not negative
+     * @return 1 to 5
+     */
+    static int varintSize(int value) {
+	int size = 1;
+	while ((value & ~0x7F) != 0) {
+	    value >>>= 7;
+	    size++;
+	}
+	return size;
+    }
+
+    /**
+     * Reads an unsigned varint.
+     *
+     * @param buf the buffer
+     * @param pos position of the first byte
+     * @param end end of the readable bytes
+     * @return the value in the high 32 bits and the position after the varint in the low
+     * 32 bits, or -1 if the varint is not complete yet
+     * @throws IllegalArgumentException If the varint is longer than 5 bytes
+     */
+    static long readVarint(byte[] buf, int pos, int end) {
+	int value = 0;
+	for (int shift = 0; shift < 35; shift += 7) {
+	    if (pos >= end) {
+		return -1;
+	    }
+	    byte b = buf[pos++];
+	    value |= (b & 0x7F) << shift;
+	    if ((b & 0x80) == 0) {
+		if (value < 0) {
+		    throw new IllegalArgumentException("Bad protocol: negative length");
+		}
+		return ((long) value << 32) | pos;
+	    }
+	}
+	throw new IllegalArgumentException("Bad protocol: varint too long");
+    }
+
+    private static String escape(String message) {
+	return message.replace("\n", "&#92").replace(";", "&#59");
+    }
+
+    private static String unescape(String message) {
+	return message.replace("&#92", "\n").replace("&#59", ";");
+    }
+}
@@ -0,0 +1,226 @@
+package model.protocol;
+
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses and decompresses version 2 frames of one connection.
+ * A frame longer than the threshold is sent with the high bit of the opcode set,
+ * followed by the length of the arguments as a varint and the arguments compressed
+ * with deflate. Frames that would not get shorter are sent as they are.<br>
+ * Every frame is compressed on its own, so frames can be decoded in any order and a
+ * lost frame does not affect the next. The Deflater and the Inflater are made when
+ * first needed and reused for every frame, since making them is expensive.<br>
+ * Frames are compressed by the single writer and decompressed by the single reader
+ * of the connection, the two may be different threads. A {@link Frame#share() shared}
+ * frame is compressed by the first connection that sends it, and the others send
+ * the same bytes. The compressors of one server must then use the same threshold.
+ *
+ * @author Member(1-2-3-4)
+ */
+public final class FrameCompressor {
+
+    /**
+     * Set in the opcode of a compressed frame.
+     */
+    static final int COMPRESSED = 0x80;
+
+    /**
+     * Gets the size and time of every compression, for statistics.
+     */
+    public interface Listener {
+
+	/**
+	 * Called after a frame was compressed, also when the frame was sent as it is.
+	 * A shared frame sent with bytes compressed before is counted with 0 nanos.
+	 *
+	 * @param before Bytes in the frame
+	 * @param after Bytes sent, equal to before if the frame was not compressed
+	 * @param nanos Time used
+	 */
+	void compressed(int before, int after, long nanos);
+
+	/**
+	 * Called after a compressed frame was received and decompressed.
+	 *
+	 * @param before Bytes received
+	 * @param after Bytes after decompression
+	 * @param nanos Time used
+	 */
+	void decompressed(int before, int after, long nanos);
+    }
+
+    private final int threshold;
+    private final Listener listener;
+    private final Object deflateLock = new Object();
+    private final Object inflateLock = new Object();
+    private Deflater deflater;
+    private Inflater inflater;
+    private byte[] out = new byte[0];
+    private boolean closed = false;
+
+    /**
+     * Creates a compressor.
+     *
+     * @param threshold Frames up to this many bytes are not compressed
+     * @param listener Gets every compression, or null
+     */
+    public FrameCompressor(int threshold, Listener listener) {
+	this.threshold = threshold;
+	this.listener = listener;
+    }
+
+    /**
+     * Compresses a version 2 frame if it is longer than the threshold. A shared
+     * frame is only compressed the first time, after that the same bytes are returned.
+     *
+     * @param frame The frame
+     * @param encoded The frame encoded with version 2, with its length prefix
+     * @return the bytes to send, must not be changed
+     */
+    public byte[] compress(Frame frame, byte[] encoded) {
+	if (!frame.isShared() || encoded.length <= threshold) {
+	    return compress(encoded);
+	}
+	byte[] result = frame.compressed();
+	if (result == null) {
+	    //Two writers may both compress it, they get equal bytes
+	    result = compress(encoded);
+	    frame.setCompressed(result);
+	} else if (listener != null) {
+	    listener.compressed(encoded.length, result.length, 0);
+	}
+	return result;
+    }
+
+    /**
+     * Compresses an encoded version 2 frame if it is longer than the threshold.
+     * The given bytes are never changed, so frames encoded once for many users can be used.
+     *
+     * @param frame The frame, with its length prefix
+     * @return the compressed frame, or the same bytes if it was not compressed
+     */
+    public byte[] compress(byte[] frame) {
+	if (frame.length <= threshold) {
+	    return frame;
+	}
+	long start = System.nanoTime();
+	byte[] result = frame;
+	synchronized (deflateLock) {
+	    if (!closed) {
+		result = deflate(frame);
+	    }
+	}
+	if (listener != null) {
+	    listener.compressed(frame.length, result.length, System.nanoTime() - start);
+	}
+	return result;
+    }
+
+    private byte[] deflate(byte[] frame) {
+	int payload = (int) FrameCodec.readVarint(frame, 0, frame.length);
+	int args = payload + 1;
+	int rawLen = frame.length - args;
+	if (deflater == null) {
+	    deflater = new Deflater();
+	}
+	if (out.length < rawLen) {
+	    out = new byte[rawLen];
+	}
+	deflater.reset();
+	deflater.setInput(frame, args, rawLen);
+	deflater.finish();
+	int clen = 0;
+	while (!deflater.finished() && clen < rawLen) {
+	    clen += deflater.deflate(out, clen, rawLen - clen);
+	}
+	if (!deflater.finished()) {
+	    return frame;
+	}
+	int len = 1 + FrameCodec.varintSize(rawLen) + clen;
+	int total = FrameCodec.varintSize(len) + len;
+	if (total >= frame.length) {
+	    return frame;
+	}
+	byte[] result = new byte[total];
+	int pos = FrameCodec.writeVarint(result, 0, len);
+	result[pos++] = (byte) (frame[payload] | COMPRESSED);
+	pos = FrameCodec.writeVarint(result, pos, rawLen);
+	System.arraycopy(out, 0, result, pos, clen);
+	return result;
+    }
+
+    /**
+     * Decodes the payload of a compressed version 2 frame.
+     *
+     * @param buf buffer holding the payload
+     * @param off start of the payload, the opcode
+     * @param len length of the payload
+     * @return the frame
+     * @throws IllegalArgumentException If the payload is not a compressed SMP frame
+     */
+    public Frame decompress(byte[] buf, int off, int len) {
+	long start = System.nanoTime();
+	int end = off + len;
+	long lenAndPos = FrameCodec.readVarint(buf, off + 1, end);
+	if (lenAndPos < 0) {
+	    throw new IllegalArgumentException("Bad protocol: compressed length cut off");
+	}
+	int rawLen = (int) (lenAndPos >>> 32);
+	int pos = (int) lenAndPos;
+	//The length comes from the other side, check it before allocating
+	if (rawLen > Protocol.MAX_FRAME) {
+	    throw new IllegalArgumentException("Bad protocol: frame too long");
+	}
+	byte[] plain = new byte[1 + rawLen];
+	plain[0] = (byte) (buf[off] & ~COMPRESSED);
+	synchronized (inflateLock) {
+	    if (closed) {
+		throw new IllegalArgumentException("Connection closed");
+	    }
+	    if (inflater == null) {
+		inflater = new Inflater();
+	    }
+	    inflater.reset();
+	    inflater.setInput(buf, pos, end - pos);
+	    try {
+		int n = 0;
+		while (!inflater.finished() && n <= rawLen) {
+		    //Inflating past the given length means the frame is bad
+		    int k = n < rawLen ? inflater.inflate(plain, 1 + n, rawLen - n) : inflater.inflate(new byte[1]);
+		    if (k == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+			break;
+		    }
+		    n += k;
+		}
+		if (n != rawLen || !inflater.finished()) {
+		    throw new IllegalArgumentException("Bad protocol: wrong compressed length");
+		}
+	    } catch (DataFormatException e) {
+		throw new IllegalArgumentException("Bad protocol: " + e.getMessage());
+	    }
+	}
+	if (listener != null) {
+	    listener.decompressed(len, plain.length, System.nanoTime() - start);
+	}
+	return FrameCodec.decodeV2(plain, 0, plain.length);
+    }
+
+    /**
+     * Frees the Deflater and the Inflater. Frames are not compressed after this.
+     */
+    public void close() {
+	synchronized (deflateLock) {
+	    synchronized (inflateLock) {
+		closed = true;
+		if (deflater != null) {
+		    deflater.end();
+		}
+		if (inflater != null) {
+		    inflater.end();
+		}
+	    }
+	}
+    }
+}
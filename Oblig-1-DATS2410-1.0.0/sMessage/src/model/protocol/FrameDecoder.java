@@ -0,0 +1,157 @@
+package model.protocol;
+
+import java.io.IOException;
+
+/**
+ * Splits a stream of bytes into {@link Frame frames}.
+ * Bytes are fed in as they arrive from the network, in any chunk size, and every complete
+ * frame is handed to a {@link Handler handler}. The protocol version may be changed by the
+ * handler, the rest of the bytes are then decoded with the new version.<br>
+ * Not thread safe, one decoder is used by the single reader of a connection.
+ *
+ * @author Member(1-2-3-4)
+ */
+public final class FrameDecoder {
+
+    /**
+     * Receives decoded frames.
+     */
+    public interface Handler {
+
+	/**
+	 * Called once for every complete frame.
+	 *
+	 * @param frame the frame
+	 * @throws IOException If handling the frame failed
+	 */
+	void frameReceived(Frame frame) throws IOException;
+    }
+
+    private byte[] buf = new byte[256];
+    private int start = 0;
+    private int end = 0;
+    private int scanned = 0;
+    private int version;
+    private FrameCompressor compressor;
+
+    /**
+     * Creates a decoder.
+     *
+     * @param version The protocol version of the first frame
+     */
+    public FrameDecoder(int version) {
+	this.version = version;
+    }
+
+    /**
+     * Sets the protocol version of the next frame.
+     *
+     * @param version The protocol version
+     */
+    public void setVersion(int version) {
+	this.version = version;
+    }
+
+    /**
+     * Returns the protocol version of the next frame.
+     *
+     * @return the version
+     */
+    public int getVersion() {
+	return version;
+    }
+
+    /**
+     * Lets the decoder read compressed version 2 frames from the next frame on.
+     *
+     * @param compressor Decompresses the frames of this connection
+     */
+    public void setCompressor(FrameCompressor compressor) {
+	this.compressor = compressor;
+    }
+
+    /**
+     * Decodes bytes received from the network.
+     *
+     * @param data The bytes
+     * @param off Start of the bytes in data
+     * @param len Number of bytes
+     * @param handler Gets every complete frame
+     * @throws IOException If the handler throws
+     * @throws IllegalArgumentException If the bytes are not SMP frames, the connection
+     * should be closed
+     */
+    public void feed(byte[] data, int off, int len, Handler handler) throws IOException {
+	append(data, off, len);
+	Frame frame;
+	while ((frame = next()) != null) {
+	    handler.frameReceived(frame);
+	}
+	if (start == end) {
+	    start = end = scanned = 0;
+	}
+    }
+
+    private Frame next() {
+	if (version == Protocol.VERSION_2) {
+	    return nextV2();
+	}
+	return nextV1();
+    }
+
+    private Frame nextV1() {
+	for (int i = Math.max(scanned, start); i < end; i++) {
+	    if (buf[i] == '\n') {
+		int lineStart = start;
+		int lineEnd = i > start && buf[i - 1] == '\r' ? i - 1 : i;
+		start = i + 1;
+		scanned = start;
+		return FrameCodec.decodeV1(buf, lineStart, lineEnd - lineStart);
+	    }
+	}
+	scanned = end;
+	if (end - start > Protocol.MAX_FRAME) {
+	    throw new IllegalArgumentException("Bad protocol: line too long");
+	}
+	return null;
+    }
+
+    private Frame nextV2() {
+	long lenAndPos = FrameCodec.readVarint(buf, start, end);
+	if (lenAndPos < 0) {
+	    return null;
+	}
+	int len = (int) (lenAndPos >>> 32);
+	int payload = (int) lenAndPos;
+	if (len > Protocol.MAX_FRAME) {
+	    throw new IllegalArgumentException("Bad protocol: frame too long");
+	}
+	if (end - payload < len) {
+	    return null;
+	}
+	start = payload + len;
+	scanned = start;
+	if (compressor != null && len > 0 && (buf[payload] & FrameCompressor.COMPRESSED) != 0) {
+	    return compressor.decompress(buf, payload, len);
+	}
+	return FrameCodec.decodeV2(buf, payload, len);
+    }
+
+    private void append(byte[] data, int off, int len) {
+	if (end + len > buf.length) {
+	    int used = end - start;
+	    if (used + len > buf.length) {
+		byte[] bigger = new byte[Math.max(buf.length * 2, used + len)];
+		System.arraycopy(buf, start, bigger, 0, used);
+		buf = bigger;
+	    } else {
+		System.arraycopy(buf, start, buf, 0, used);
+	    }
+	    scanned -= start;
+	    start = 0;
+	    end = used;
+	}
+	System.arraycopy(data, off, buf, end, len);
+	end += len;
+    }
+}
@@ -0,0 +1,106 @@
+package model.protocol;
+
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Constants for the two versions of the Simple Messaging Protocol (SMP).<br>
+ * <b>Version 1</b> is text, one frame per line, fields separated by ";":
+ * "TYPE 0;COMMAND;arg;arg" for commands and "TYPE 1;username;message" for chat messages.
+ * Line breaks and ";" in the fields are escaped as "&amp;#92" and "&amp;#59".<br>
+ * <b>Version 2</b> is binary. Every frame is a varint length followed by that many bytes:
+ * one opcode byte, then every argument as a varint length and UTF-8 bytes. Nothing is escaped.
+ * Opcode 0 is a chat message, opcode n is the {@link model.Command command} with ordinal n - 1.<br>
+ * Every connection starts on version 1. The client sends {@link model.Command#HELLO HELLO}
+ * and both sides switch after the answer from the server. HELLO also carries optional
+ * capabilities, the server answers with the ones it supports and only uses those.<br>
+ * With {@link #CAP_DEFLATE DEFLATE} large version 2 frames may be compressed, see
+ * {@link FrameCompressor FrameCompressor}.
+ *
+ * @author Member(1-2-3-4)
+ */
+public final class Protocol {
+
+    /**
+     * The original text protocol.
+     */
+    public static final int VERSION_1 = 1;
+    /**
+     * The binary, length prefixed protocol.
+     */
+    public static final int VERSION_2 = 2;
+    /**
+     * The highest version this program supports.
+     */
+    public static final int HIGHEST_VERSION = VERSION_2;
+    /**
+     * Frames longer than this are refused, in both versions.
+     */
+    public static final int MAX_FRAME = 1 << 20;
+    /**
+     * Capability: the client understands {@link model.Command#PRESENCE PRESENCE} batches.
+     */
+    public static final String CAP_PRESENCE = "PRESENCE";
+    /**
+     * Capability: both sides read compressed frames. Only used with version 2.
+     */
+    public static final String CAP_DEFLATE = "DEFLATE";
+    /**
+     * Capability: the client answers {@link model.Command#PING PING}, so the
+     * server may close the connection if nothing is received for a while.
+     */
+    public static final String CAP_PING = "PING";
+    /**
+     * Frames up to this many bytes are not compressed by the client. A USERLIST
+     * with a few hundred users or a long pasted message is larger.
+     */
+    public static final int COMPRESS_THRESHOLD = 1024;
+    /**
+     * Charset used by version 1, to stay compatible with old programs.
+     */
+    public static final Charset V1_CHARSET = Charset.defaultCharset();
+    /**
+     * Charset used by version 2.
+     */
+    public static final Charset V2_CHARSET = StandardCharsets.UTF_8;
+
+    private Protocol() {
+    }
+
+    /**
+     * Returns true if a username or room name is allowed: not empty, and without
+     * ";", line breaks or other control characters. Checked by the server for
+     * every user, whatever version the user speaks, since the names are sent to
+     * users of both versions.
+     *
+     * @param name The name
+     * @return if the name is allowed
+     */
+    public static boolean isValidName(String name) {
+	if (name == null || name.isEmpty()) {
+	    return false;
+	}
+	for (int i = 0; i < name.length(); i++) {
+	    char c = name.charAt(i);
+	    if (c == ';' || Character.isISOControl(c)) {
+		return false;
+	    }
+	}
+	return true;
+    }
+
+    /**
+     * Parses the version in a HELLO frame, and limits it to the versions supported here.
+     *
+     * @param version The version from the other side
+     * @return The version both sides support
+     */
+    public static int negotiate(String version) {
+	try {
+	    int v = Integer.parseInt(version);
+	    return Math.max(VERSION_1, Math.min(v, HIGHEST_VERSION));
+	} catch (NumberFormatException e) {
+	    return VERSION_1;
+	}
+    }
+}
@@ -0,0 +1,154 @@
+package model.server;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Runs logins and registrations on a few threads with a bounded queue.
+ * When the server restarts every client logs in at once. The stage lets a fixed
+ * number of logins run at the same time and queues a fixed number more, and
+ * turns the rest away with a hint of when to try again, so the logins that are
+ * let in finish quickly instead of all of them competing.
+ *
+ * @author Member(1-2-3-4)
+ */
+public class AuthStage {
+
+    /**
+     * Shortest retry hint, in milliseconds.
+     */
+    static final long MIN_RETRY_MILLIS = 250;
+    /**
+     * Longest retry hint, in milliseconds.
+     */
+    static final long MAX_RETRY_MILLIS = 30000;
+
+    private final ThreadPoolExecutor executor;
+    private final int threads;
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder busyNanos = new LongAdder();
+
+    /**
+     * Creates the stage. The threads are started by the first login.
+     *
+     * @param threads Number of logins running at the same time, at least 1
+     * @param queueCapacity Number of logins waiting, at least 1
+     */
+    public AuthStage(int threads, int queueCapacity) {
+	if (threads < 1 || queueCapacity < 1) {
+	    throw new IllegalArgumentException("The auth stage needs at least one thread and room for one login.");
+	}
+	this.threads = threads;
+	AtomicInteger count = new AtomicInteger();
+	executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+		new ArrayBlockingQueue<>(queueCapacity), r -> {
+		    Thread t = new Thread(r, "auth-" + count.getAndIncrement());
+		    t.setDaemon(true);
+		    return t;
+		});
+    }
+
+    /**
+     * Queues a login, unless the stage is full.
+     *
+     * @param task The login
+     * @param failed Called on the stage if the login throws, to end the session
+     * @return true if the login was queued, false if the caller should try again later
+     */
+    public boolean submit(Runnable task, Consumer<? super RuntimeException> failed) {
+	try {
+	    executor.execute(() -> run(task, failed));
+	    return true;
+	} catch (RejectedExecutionException e) {
+	    rejected.increment();
+	    return false;
+	}
+    }
+
+    private void run(Runnable task, Consumer<? super RuntimeException> failed) {
+	long start = System.nanoTime();
+	try {
+	    task.run();
+	} catch (RuntimeException e) {
+	    System.err.println("Login failed: " + e);
+	    failed.accept(e);
+	} finally {
+	    busyNanos.add(System.nanoTime() - start);
+	    completed.increment();
+	}
+    }
+
+    /**
+     * Returns how long a turned away client should wait before trying again.
+     * About the time it takes to empty the queue, with a random part so the
+     * clients do not all come back at once.
+     *
+     * @return wait in milliseconds
+     */
+    public long retryAfterMillis() {
+	long done = completed.sum();
+	long meanNanos = done == 0 ? 0 : busyNanos.sum() / done;
+	long drain = TimeUnit.NANOSECONDS.toMillis(getQueued() * meanNanos / threads);
+	long base = Math.min(MAX_RETRY_MILLIS / 2, Math.max(MIN_RETRY_MILLIS, drain));
+	return base + ThreadLocalRandom.current().nextLong(base + 1);
+    }
+
+    /**
+     * Returns the number of logins waiting.
+     *
+     * @return queue depth
+     */
+    public int getQueued() {
+	return executor.getQueue().size();
+    }
+
+    /**
+     * Returns the number of logins done.
+     *
+     * @return logins done
+     */
+    public long getCompleted() {
+	return completed.sum();
+    }
+
+    /**
+     * Returns the number of logins turned away because the stage was full.
+     *
+     * @return logins turned away
+     */
+    public long getRejected() {
+	return rejected.sum();
+    }
+
+    /**
+     * Returns the mean time of a login.
+     *
+     * @return time in microseconds, 0 before the first login
+     */
+    public long getMeanMicros() {
+	long done = completed.sum();
+	return done == 0 ? 0 : busyNanos.sum() / done / 1000;
+    }
+
+    /**
+     * Stops the threads. Logins not done yet are dropped.
+     */
+    public void close() {
+	executor.shutdownNow();
+    }
+
+    @Override
+    public String toString() {
+	return "logins done: " + getCompleted()
+		+ ", turned away: " + getRejected()
+		+ ", waiting: " + getQueued()
+		+ ", mean login us: " + getMeanMicros();
+    }
+}
@@ -0,0 +1,134 @@
+package model.server;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Consumer;
+
+/**
+ * Delivers broadcasts on a few worker threads, called lanes.
+ * Every recipient belongs to one lane. The thread that broadcasts only queues
+ * one task on the first lane, however many recipients there are. That task splits
+ * the recipients by lane in one pass, queues one task for every other lane with
+ * recipients, and then serves its own, so the recipients are served in parallel
+ * and no lane looks at the recipients of the others.<br>
+ * A lane is a single thread with a queue, and a recipient is always served by
+ * the same lane. Every broadcast is split on the first lane, in the order they
+ * were made, so every recipient gets the broadcasts in that order.
+ *
+ * @author Member(1-2-3-4)
+ */
+public class FanoutExecutor {
+
+    private final ExecutorService[] lanes;
+
+    /**
+     * Creates the lanes. The threads are started by the first broadcast.
+     *
+     * @param lanes Number of lanes, at least 1
+     */
+    public FanoutExecutor(int lanes) {
+	if (lanes < 1) {
+	    throw new IllegalArgumentException("At least one lane is needed.");
+	}
+	this.lanes = new ExecutorService[lanes];
+	for (int i = 0; i < lanes; i++) {
+	    String name = "fanout-" + i;
+	    this.lanes[i] = Executors.newSingleThreadExecutor(r -> {
+		Thread t = new Thread(r, name);
+		t.setDaemon(true);
+		return t;
+	    });
+	}
+    }
+
+    /**
+     * Delivers to every recipient on its lane, and returns at once.
+     *
+     * @param <S> The recipient type
+     * @param recipients The recipients, a live view is fine as long as it can
+     * be iterated while it changes. It is read on the first lane, so recipients
+     * added or removed before it is split may or may not get the broadcast
+     * @param delivery Called once for every recipient, on the lane of the recipient
+     */
+    public <S> void broadcast(Collection<S> recipients, Consumer<? super S> delivery) {
+	submit(0, () -> split(recipients, delivery));
+    }
+
+    /**
+     * Runs on the first lane.
+     */
+    private <S> void split(Collection<S> recipients, Consumer<? super S> delivery) {
+	List<List<S>> groups = new ArrayList<>(lanes.length);
+	for (int i = 0; i < lanes.length; i++) {
+	    groups.add(null);
+	}
+	//Room for an even share, so a large broadcast does not grow the lists many times
+	int share = recipients.size() / lanes.length + 1;
+	for (S recipient : recipients) {
+	    int lane = laneOf(recipient);
+	    if (groups.get(lane) == null) {
+		groups.set(lane, new ArrayList<>(share));
+	    }
+	    groups.get(lane).add(recipient);
+	}
+	for (int i = 1; i < lanes.length; i++) {
+	    List<S> group = groups.get(i);
+	    if (group != null) {
+		submit(i, () -> {
+		    for (S recipient : group) {
+			deliver(recipient, delivery);
+		    }
+		});
+	    }
+	}
+	//The other lanes are started, now the recipients of this one
+	if (groups.get(0) != null) {
+	    for (S recipient : groups.get(0)) {
+		deliver(recipient, delivery);
+	    }
+	}
+    }
+
+    /**
+     * Returns the number of lanes.
+     *
+     * @return number of lanes
+     */
+    public int getLanes() {
+	return lanes.length;
+    }
+
+    /**
+     * Stops the lanes. Broadcasts not delivered yet are dropped.
+     */
+    public void close() {
+	for (ExecutorService lane : lanes) {
+	    lane.shutdownNow();
+	}
+    }
+
+    private int laneOf(Object recipient) {
+	return (System.identityHashCode(recipient) & Integer.MAX_VALUE) % lanes.length;
+    }
+
+    private void submit(int lane, Runnable task) {
+	try {
+	    lanes[lane].execute(task);
+	} catch (RejectedExecutionException e) {
+	    //Closed, the server is stopping
+	}
+    }
+
+    private static <S> void deliver(S recipient, Consumer<? super S> delivery) {
+	try {
+	    delivery.accept(recipient);
+	} catch (RuntimeException e) {
+	    //One failing recipient must not stop the others
+	    e.printStackTrace();
+	}
+    }
+}
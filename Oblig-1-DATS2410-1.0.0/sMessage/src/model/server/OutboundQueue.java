@@ -0,0 +1,242 @@
+package model.server;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded queue of frames waiting to be written to one connection.
+ * Any thread may {@link #offer(String, Object) offer} frames, but only the single writer
+ * of the connection takes them out, so frames from different senders are never interleaved
+ * and a sender never waits for a slow socket.<br>
+ * What happens when the queue is full is decided by the {@link Policy policy}.
+ *
+ * @author Member(1-2-3-4)
+ * @param <T> The frame type
+ */
+public class OutboundQueue<T> {
+
+    /**
+     * What to do with a frame offered to a full queue.
+     */
+    public enum Policy {
+	/**
+	 * The new frame is dropped, the connection is kept.
+	 */
+	DROP,
+	/**
+	 * The connection is closed. The peer is too slow to keep up.
+	 */
+	DISCONNECT,
+	/**
+	 * Frames with a key replaces the queued frame with the same key, so only the newest
+	 * is sent. This is done whether the queue is full or not. If the queue is still full
+	 * the connection is closed as with DISCONNECT.
+	 */
+	COALESCE
+    }
+
+    /**
+     * The outcome of an {@link #offer(String, Object) offer}.
+     */
+    public enum Result {
+	QUEUED,
+	COALESCED,
+	DROPPED,
+	/**
+	 * The queue is full and the connection should be closed.
+	 */
+	OVERFLOW,
+	CLOSED
+    }
+
+    private static final class Entry<T> {
+
+	final String key;
+	T frame;
+
+	Entry(String key, T frame) {
+	    this.key = key;
+	    this.frame = frame;
+	}
+    }
+
+    private final int capacity;
+    private final Policy policy;
+    private final ArrayDeque<Entry<T>> queue = new ArrayDeque<>();
+    private final HashMap<String, Entry<T>> byKey = new HashMap<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition drained = lock.newCondition();
+    private boolean closed = false;
+
+    /**
+     * Creates an empty queue.
+     *
+     * @param capacity Maximum number of queued frames
+     * @param policy What to do when the queue is full
+     */
+    public OutboundQueue(int capacity, Policy policy) {
+	if (capacity < 1) {
+	    throw new IllegalArgumentException("Capacity must be at least 1.");
+	}
+	this.capacity = capacity;
+	this.policy = policy;
+    }
+
+    /**
+     * Adds a frame to the queue.
+     *
+     * @param key Coalescing key, or null if the frame must always be sent. Only used with
+     * {@link Policy#COALESCE COALESCE}.
+     * @param frame The frame
+     * @return What happened to the frame
+     */
+    public Result offer(String key, T frame) {
+	lock.lock();
+	try {
+	    if (closed) {
+		return Result.CLOSED;
+	    }
+	    if (policy == Policy.COALESCE && key != null) {
+		Entry<T> queued = byKey.get(key);
+		if (queued != null) {
+		    queued.frame = frame;
+		    return Result.COALESCED;
+		}
+	    }
+	    if (queue.size() >= capacity) {
+		return policy == Policy.DROP ? Result.DROPPED : Result.OVERFLOW;
+	    }
+	    Entry<T> entry = new Entry<>(key, frame);
+	    queue.addLast(entry);
+	    if (policy == Policy.COALESCE && key != null) {
+		byKey.put(key, entry);
+	    }
+	    notEmpty.signal();
+	    return Result.QUEUED;
+	} finally {
+	    lock.unlock();
+	}
+    }
+
+    /**
+     * Removes the oldest frame without waiting.
+     *
+     * @return The frame, or null if the queue is empty or closed
+     */
+    public T poll() {
+	lock.lock();
+	try {
+	    return closed ? null : next();
+	} finally {
+	    lock.unlock();
+	}
+    }
+
+    /**
+     * Removes the oldest frame, waits until there is one.
+     *
+     * @return The frame, or null when the queue is closed
+     * @throws InterruptedException If interrupted while waiting
+     */
+    public T take() throws InterruptedException {
+	lock.lock();
+	try {
+	    while (!closed && queue.isEmpty()) {
+		notEmpty.await();
+	    }
+	    return closed ? null : next();
+	} finally {
+	    lock.unlock();
+	}
+    }
+
+    /**
+     * Removes the oldest frame, waits at most the given time for one.
+     *
+     * @param timeout How long to wait
+     * @param unit Unit of timeout
+     * @return The frame, or null if the time ran out or the queue is closed
+     * @throws InterruptedException If interrupted while waiting
+     */
+    public T poll(long timeout, TimeUnit unit) throws InterruptedException {
+	long nanos = unit.toNanos(timeout);
+	lock.lock();
+	try {
+	    while (!closed && queue.isEmpty()) {
+		if (nanos <= 0) {
+		    return null;
+		}
+		nanos = notEmpty.awaitNanos(nanos);
+	    }
+	    return closed ? null : next();
+	} finally {
+	    lock.unlock();
+	}
+    }
+
+    /**
+     * Waits until at most the given number of frames are queued. Lets a sender of
+     * many frames wait for the writer instead of filling the queue.
+     *
+     * @param size Number of frames
+     * @return true when there are at most size frames, false if the queue is closed
+     * @throws InterruptedException If interrupted while waiting
+     */
+    public boolean awaitSize(int size) throws InterruptedException {
+	lock.lock();
+	try {
+	    while (!closed && queue.size() > size) {
+		drained.await();
+	    }
+	    return !closed;
+	} finally {
+	    lock.unlock();
+	}
+    }
+
+    private T next() {
+	Entry<T> entry = queue.pollFirst();
+	if (entry == null) {
+	    return null;
+	}
+	drained.signalAll();
+	if (entry.key != null) {
+	    byKey.remove(entry.key, entry);
+	}
+	return entry.frame;
+    }
+
+    /**
+     * Returns the number of queued frames.
+     *
+     * @return queue size
+     */
+    public int size() {
+	lock.lock();
+	try {
+	    return queue.size();
+	} finally {
+	    lock.unlock();
+	}
+    }
+
+    /**
+     * Closes the queue. Queued frames are discarded and later offers are refused.
+     */
+    public void close() {
+	lock.lock();
+	try {
+	    closed = true;
+	    queue.clear();
+	    byKey.clear();
+	    notEmpty.signalAll();
+	    drained.signalAll();
+	} finally {
+	    lock.unlock();
+	}
+    }
+}
@@ -0,0 +1,88 @@
+package model.server;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * Collects status changes of users over a short window and hands them on as one batch.
+ * Repeated changes of the same user within a window are collapsed to the last one, so a
+ * login storm gives every client one batch per window instead of one frame per user.<br>
+ * The batcher does not know about sessions, the server delivers the batch.
+ *
+ * @author Member(1-2-3-4)
+ */
+public class PresenceBatcher {
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private LinkedHashMap<String, String> pending = new LinkedHashMap<>();
+    private final Consumer<Map<String, String>> delivery;
+    private final ScheduledExecutorService ticker;
+
+    /**
+     * Creates a batcher and starts its timer.
+     *
+     * @param windowMillis Length of the window in milliseconds, at least 1
+     * @param delivery Gets every non-empty batch, username to status, in the
+     * order the users first changed. Called from the timer thread.
+     */
+    public PresenceBatcher(long windowMillis, Consumer<Map<String, String>> delivery) {
+	if (windowMillis < 1) {
+	    throw new IllegalArgumentException("Window must be at least 1 ms.");
+	}
+	this.delivery = delivery;
+	ticker = Executors.newSingleThreadScheduledExecutor(r -> {
+	    Thread t = new Thread(r, "presence");
+	    t.setDaemon(true);
+	    return t;
+	});
+	ticker.scheduleWithFixedDelay(this::tick, windowMillis, windowMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Records a new status for a user. Replaces a change of the same user that
+     * is not delivered yet.
+     *
+     * @param uname The user
+     * @param status The new status, "+", "-" or "0"
+     */
+    public void changed(String uname, String status) {
+	lock.lock();
+	try {
+	    pending.put(uname, status);
+	} finally {
+	    lock.unlock();
+	}
+    }
+
+    private void tick() {
+	LinkedHashMap<String, String> batch;
+	lock.lock();
+	try {
+	    if (pending.isEmpty()) {
+		return;
+	    }
+	    batch = pending;
+	    pending = new LinkedHashMap<>();
+	} finally {
+	    lock.unlock();
+	}
+	try {
+	    delivery.accept(batch);
+	} catch (RuntimeException e) {
+	    //A failing delivery must not stop the timer
+	    e.printStackTrace();
+	}
+    }
+
+    /**
+     * Stops the timer. Changes not delivered yet are dropped.
+     */
+    public void close() {
+	ticker.shutdownNow();
+    }
+}
@@ -0,0 +1,87 @@
+package model.server;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Thread safe table of chat rooms and their members.
+ * A room exists while it has members, it is created by the first join and
+ * removed when the last member leaves. Joining, leaving and looking up the
+ * members of a room are O(1), no matter how many rooms or members there are.
+ *
+ * @author Member(1-2-3-4)
+ * @param <S> The session type
+ */
+public class RoomTable<S> {
+
+    private final ConcurrentHashMap<String, Set<S>> rooms = new ConcurrentHashMap<>();
+
+    /**
+     * Adds a member to a room, and creates the room if needed.
+     *
+     * @param room Name of the room
+     * @param session The new member
+     * @return true if the session was not a member already
+     */
+    public boolean join(String room, S session) {
+	boolean[] added = new boolean[1];
+	//Done inside compute, so the room is not removed by a leave at the same time
+	rooms.compute(room, (name, members) -> {
+	    Set<S> set = members != null ? members : ConcurrentHashMap.newKeySet();
+	    added[0] = set.add(session);
+	    return set;
+	});
+	return added[0];
+    }
+
+    /**
+     * Removes a member from a room, and removes the room if it gets empty.
+     *
+     * @param room Name of the room
+     * @param session The member
+     * @return true if the session was a member
+     */
+    public boolean leave(String room, S session) {
+	boolean[] removed = new boolean[1];
+	rooms.computeIfPresent(room, (name, members) -> {
+	    removed[0] = members.remove(session);
+	    return members.isEmpty() ? null : members;
+	});
+	return removed[0];
+    }
+
+    /**
+     * Returns the members of a room. The view is live and can be iterated while
+     * members join and leave.
+     *
+     * @param room Name of the room
+     * @return read only view of the members, empty if the room does not exist
+     */
+    public Collection<S> members(String room) {
+	Set<S> members = rooms.get(room);
+	return members == null ? Collections.emptySet() : Collections.unmodifiableSet(members);
+    }
+
+    /**
+     * Returns true if a session is a member of a room.
+     *
+     * @param room Name of the room
+     * @param session The session
+     * @return if the session is a member
+     */
+    public boolean isMember(String room, S session) {
+	Set<S> members = rooms.get(room);
+	return members != null && members.contains(session);
+    }
+
+    /**
+     * Returns the number of rooms with members.
+     *
+     * @return number of rooms
+     */
+    public int size() {
+	return rooms.size();
+    }
+}
@@ -0,0 +1,178 @@
+package model.server;
+
+import java.util.concurrent.atomic.LongAdder;
+import model.protocol.FrameCompressor;
+
+/**
+ * Counters for the output path, the compression and the idle connections of the server. Updated by every
+ * writer and reader thread, so the counters are LongAdders and reading them gives a close estimate.
+ *
+ * @author Member(1-2-3-4)
+ */
+public class ServerStats implements FrameCompressor.Listener {
+
+    private final LongAdder framesWritten = new LongAdder();
+    private final LongAdder bytesWritten = new LongAdder();
+    private final LongAdder writeCalls = new LongAdder();
+    private final LongAdder framesCompressed = new LongAdder();
+    private final LongAdder bytesBeforeCompression = new LongAdder();
+    private final LongAdder bytesAfterCompression = new LongAdder();
+    private final LongAdder compressNanos = new LongAdder();
+    private final LongAdder framesDecompressed = new LongAdder();
+    private final LongAdder bytesBeforeDecompression = new LongAdder();
+    private final LongAdder bytesAfterDecompression = new LongAdder();
+    private final LongAdder decompressNanos = new LongAdder();
+    private final LongAdder sessionsReaped = new LongAdder();
+
+    /**
+     * Counts frames taken from an outbound queue and written in one batch.
+     *
+     * @param frames number of frames
+     */
+    public void framesWritten(int frames) {
+	framesWritten.add(frames);
+    }
+
+    /**
+     * Counts one write to a socket.
+     *
+     * @param bytes number of bytes written
+     */
+    public void writeCall(long bytes) {
+	writeCalls.increment();
+	bytesWritten.add(bytes);
+    }
+
+    /**
+     * Counts a connection closed because nothing was received for too long.
+     */
+    public void sessionReaped() {
+	sessionsReaped.increment();
+    }
+
+    @Override
+    public void compressed(int before, int after, long nanos) {
+	if (after < before) {
+	    framesCompressed.increment();
+	}
+	bytesBeforeCompression.add(before);
+	bytesAfterCompression.add(after);
+	compressNanos.add(nanos);
+    }
+
+    @Override
+    public void decompressed(int before, int after, long nanos) {
+	framesDecompressed.increment();
+	bytesBeforeDecompression.add(before);
+	bytesAfterDecompression.add(after);
+	decompressNanos.add(nanos);
+    }
+
+    /**
+     * Returns the number of frames written.
+     *
+     * @return frames written
+     */
+    public long getFramesWritten() {
+	return framesWritten.sum();
+    }
+
+    /**
+     * Returns the number of bytes written.
+     *
+     * @return bytes written
+     */
+    public long getBytesWritten() {
+	return bytesWritten.sum();
+    }
+
+    /**
+     * Returns the number of socket writes.
+     *
+     * @return socket writes
+     */
+    public long getWriteCalls() {
+	return writeCalls.sum();
+    }
+
+    /**
+     * Returns the number of socket writes saved by batching, compared to one
+     * write and flush per frame.
+     *
+     * @return saved socket writes
+     */
+    public long getWriteCallsSaved() {
+	return Math.max(0, getFramesWritten() - getWriteCalls());
+    }
+
+    /**
+     * Returns the number of frames sent compressed.
+     *
+     * @return frames compressed
+     */
+    public long getFramesCompressed() {
+	return framesCompressed.sum();
+    }
+
+    /**
+     * Returns the number of compressed frames received.
+     *
+     * @return frames decompressed
+     */
+    public long getFramesDecompressed() {
+	return framesDecompressed.sum();
+    }
+
+    /**
+     * Returns the number of bytes saved by compression, sent and received.
+     *
+     * @return bytes saved
+     */
+    public long getBytesSavedByCompression() {
+	return bytesBeforeCompression.sum() - bytesAfterCompression.sum()
+		+ bytesAfterDecompression.sum() - bytesBeforeDecompression.sum();
+    }
+
+    /**
+     * Returns the time used to compress frames, also frames that did not get
+     * shorter and were sent as they were.
+     *
+     * @return time in nanoseconds
+     */
+    public long getCompressNanos() {
+	return compressNanos.sum();
+    }
+
+    /**
+     * Returns the time used to decompress frames.
+     *
+     * @return time in nanoseconds
+     */
+    public long getDecompressNanos() {
+	return decompressNanos.sum();
+    }
+
+    /**
+     * Returns the number of connections closed because nothing was received
+     * for too long. Most of them were lost without being closed, and would
+     * have stayed online.
+     *
+     * @return connections closed for being idle
+     */
+    public long getSessionsReaped() {
+	return sessionsReaped.sum();
+    }
+
+    @Override
+    public String toString() {
+	return "frames written: " + getFramesWritten()
+		+ ", bytes written: " + getBytesWritten()
+		+ ", socket writes: " + getWriteCalls()
+		+ ", socket writes saved: " + getWriteCallsSaved()
+		+ ", frames compressed: " + getFramesCompressed()
+		+ ", frames decompressed: " + getFramesDecompressed()
+		+ ", bytes saved by compression: " + getBytesSavedByCompression()
+		+ ", compression ms: " + (getCompressNanos() + getDecompressNanos()) / 1000000
+		+ ", idle connections closed: " + getSessionsReaped();
+    }
+}
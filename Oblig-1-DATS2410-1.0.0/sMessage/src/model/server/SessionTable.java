@@ -0,0 +1,103 @@
+package model.server;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Thread safe table of the sessions connected to the server.
+ * Every connection is in the table from accept until the socket is closed, and
+ * is bound to its username while the user is logged in. Looking up a logged in
+ * user is O(1), no matter how many users are online.
+ *
+ * @author Member(1-2-3-4)
+ * @param <S> The session type
+ */
+public class SessionTable<S> {
+
+    private final Set<S> connected = ConcurrentHashMap.newKeySet();
+    private final ConcurrentHashMap<String, S> byUname = new ConcurrentHashMap<>();
+
+    /**
+     * Adds a new connection, not yet logged in.
+     *
+     * @param session The new session
+     */
+    public void add(S session) {
+	connected.add(session);
+    }
+
+    /**
+     * Removes a closed connection, and its username binding if it has one.
+     *
+     * @param uname The username of the session, or null if never logged in
+     * @param session The closed session
+     */
+    public void remove(String uname, S session) {
+	connected.remove(session);
+	unbind(uname, session);
+    }
+
+    /**
+     * Binds a logged in user to its session.
+     *
+     * @param uname Username
+     * @param session The session of the user
+     */
+    public void bind(String uname, S session) {
+	byUname.put(uname, session);
+    }
+
+    /**
+     * Removes the binding of a user, but only if it still points to the given session.
+     *
+     * @param uname Username, may be null
+     * @param session The session of the user
+     */
+    public void unbind(String uname, S session) {
+	if (uname != null) {
+	    byUname.remove(uname, session);
+	}
+    }
+
+    /**
+     * Returns the session of a logged in user.
+     *
+     * @param uname Username, may be null
+     * @return The session, or null if the user is not logged in
+     */
+    public S get(String uname) {
+	if (uname == null) {
+	    return null;
+	}
+	return byUname.get(uname);
+    }
+
+    /**
+     * Returns every session with a logged in user.
+     *
+     * @return read only view of the logged in sessions
+     */
+    public Collection<S> loggedIn() {
+	return Collections.unmodifiableCollection(byUname.values());
+    }
+
+    /**
+     * Returns every connection, logged in or not.
+     *
+     * @return read only view of all sessions
+     */
+    public Collection<S> connected() {
+	return Collections.unmodifiableSet(connected);
+    }
+
+    /**
+     * Returns the number of logged in users.
+     *
+     * @return number of logged in users
+     */
+    public int loggedInCount() {
+	return byUname.size();
+    }
+}
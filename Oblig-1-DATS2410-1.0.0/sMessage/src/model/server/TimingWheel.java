@@ -0,0 +1,150 @@
+package model.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A hashed timing wheel, runs tasks after a delay on one timer thread.
+ * Time is split in ticks, and the wheel has one slot per tick. A task is put in
+ * the slot of the tick it is due, with the number of turns of the wheel left.
+ * Every tick the timer looks at one slot only, so scheduling and cancelling are
+ * O(1) no matter how many tasks are waiting.<br>
+ * A task runs up to one tick late. Tasks are scheduled from any thread, and run
+ * on the timer thread, so they must be short.
+ *
+ * @author Member(1-2-3-4)
+ */
+public class TimingWheel {
+
+    private final long tickMillis;
+    private final List<List<Timeout>> slots;
+    private final int mask;
+    //Scheduled but not put in a slot yet, only the timer thread uses the slots
+    private final Queue<Timeout> added = new ConcurrentLinkedQueue<>();
+    private final long start = System.nanoTime();
+    private final ScheduledExecutorService ticker;
+    private long tick = 0;
+
+    /**
+     * Creates a wheel and starts its timer.
+     *
+     * @param tickMillis Length of a tick in milliseconds, at least 1
+     * @param wheelSize Number of slots, rounded up to a power of two
+     */
+    public TimingWheel(long tickMillis, int wheelSize) {
+	if (tickMillis < 1 || wheelSize < 1) {
+	    throw new IllegalArgumentException("Tick and wheel size must be at least 1.");
+	}
+	this.tickMillis = tickMillis;
+	int size = Integer.highestOneBit(Math.max(1, wheelSize - 1)) << 1;
+	slots = new ArrayList<>(size);
+	for (int i = 0; i < size; i++) {
+	    slots.add(new ArrayList<>());
+	}
+	mask = size - 1;
+	ticker = Executors.newSingleThreadScheduledExecutor(r -> {
+	    Thread t = new Thread(r, "timing-wheel");
+	    t.setDaemon(true);
+	    return t;
+	});
+	ticker.scheduleAtFixedRate(this::advance, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Runs a task after a delay.
+     *
+     * @param task The task
+     * @param delayMillis Delay in milliseconds
+     * @return handle to cancel the task
+     */
+    public Timeout schedule(Runnable task, long delayMillis) {
+	Timeout timeout = new Timeout(task, millis() + Math.max(0, delayMillis));
+	added.add(timeout);
+	return timeout;
+    }
+
+    /**
+     * Stops the timer. Tasks not run yet are dropped.
+     */
+    public void close() {
+	ticker.shutdownNow();
+    }
+
+    private long millis() {
+	return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    }
+
+    /**
+     * Catches up with the clock, one tick at a time.
+     */
+    private void advance() {
+	long target = millis() / tickMillis;
+	while (tick <= target) {
+	    transferAdded();
+	    expire(slots.get((int) (tick & mask)));
+	    tick++;
+	}
+    }
+
+    private void transferAdded() {
+	Timeout timeout;
+	while ((timeout = added.poll()) != null) {
+	    if (timeout.cancelled) {
+		continue;
+	    }
+	    long due = Math.max(tick, timeout.deadline / tickMillis);
+	    timeout.rounds = (due - tick) / slots.size();
+	    slots.get((int) (due & mask)).add(timeout);
+	}
+    }
+
+    private void expire(List<Timeout> slot) {
+	int kept = 0;
+	for (int i = 0; i < slot.size(); i++) {
+	    Timeout timeout = slot.get(i);
+	    if (timeout.cancelled) {
+		continue;
+	    }
+	    if (timeout.rounds > 0) {
+		timeout.rounds--;
+		slot.set(kept++, timeout);
+	    } else {
+		try {
+		    timeout.task.run();
+		} catch (RuntimeException e) {
+		    //A failing task must not stop the timer
+		    e.printStackTrace();
+		}
+	    }
+	}
+	slot.subList(kept, slot.size()).clear();
+    }
+
+    /**
+     * A scheduled task.
+     */
+    public static final class Timeout {
+
+	private final Runnable task;
+	private final long deadline;
+	private long rounds;
+	private volatile boolean cancelled = false;
+
+	private Timeout(Runnable task, long deadline) {
+	    this.task = task;
+	    this.deadline = deadline;
+	}
+
+	/**
+	 * Stops the task from running. It is removed from the wheel when its slot comes up.
+	 */
+	public void cancel() {
+	    cancelled = true;
+	}
+    }
+}
@@ -0,0 +1,262 @@
+package model.server;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import model.User;
+
+/**
+ * All registered {@link User users} on the server, indexed by username.
+ * Lookups and registrations are O(1) and safe to call from every session thread at once.
+ * Iteration never throws ConcurrentModificationException, it sees the users registered
+ * when it started and may or may not see users registered while iterating.<br>
+ * Every registration and status change increases the version of the directory, and the
+ * latest changes are kept in a bounded log. A client that knows an earlier version can
+ * get only the changes since then, see {@link #changesSince(String) changesSince}.
+ *
+ * @author Member(1-2-3-4)
+ */
+public class UserDirectory implements Iterable<User> {
+
+    /**
+     * Number of changes kept in the log by default.
+     */
+    public static final int DEFAULT_LOG_SIZE = 4096;
+
+    private final ConcurrentHashMap<String, User> users = new ConcurrentHashMap<>();
+    private final ReentrantLock changeLock = new ReentrantLock();
+    private final String epoch = Long.toString(System.currentTimeMillis(), 36);
+    private final String[] logNames;
+    private final String[] logStatus;
+    private long version = 0;
+
+    /**
+     * Creates an empty directory keeping {@link #DEFAULT_LOG_SIZE} changes.
+     */
+    public UserDirectory() {
+	this(DEFAULT_LOG_SIZE);
+    }
+
+    /**
+     * Creates an empty directory.
+     *
+     * @param logSize Number of changes kept for delta updates, at least 1
+     */
+    public UserDirectory(int logSize) {
+	if (logSize < 1) {
+	    throw new IllegalArgumentException("Log size must be at least 1.");
+	}
+	logNames = new String[logSize];
+	logStatus = new String[logSize];
+    }
+
+    /**
+     * Returns the user with the given username.
+     *
+     * @param uname Username, may be null
+     * @return the user, or null if no user is registered with that name
+     */
+    public User get(String uname) {
+	if (uname == null) {
+	    return null;
+	}
+	return users.get(uname);
+    }
+
+    /**
+     * Adds the user if the username is free. The check and the insert is one atomic
+     * operation, so two users can never register the same name.
+     *
+     * @param user The new user
+     * @return True if the user was added, false if the username is used
+     */
+    public boolean register(User user) {
+	if (users.putIfAbsent(user.getUname(), user) != null) {
+	    return false;
+	}
+	statusChanged(user.getUname(), user.getStatusCode());
+	return true;
+    }
+
+    /**
+     * Adds every user whose username is free. Like {@link #register(User) register}
+     * for each user, but the change log is locked once for the whole batch.
+     *
+     * @param batch The new users
+     * @return the users that were added, in the order given
+     */
+    public List<User> registerAll(Collection<User> batch) {
+	List<User> added = new ArrayList<>(batch.size());
+	for (User user : batch) {
+	    if (users.putIfAbsent(user.getUname(), user) == null) {
+		added.add(user);
+	    }
+	}
+	changeLock.lock();
+	try {
+	    for (User user : added) {
+		log(user.getUname(), user.getStatusCode());
+	    }
+	} finally {
+	    changeLock.unlock();
+	}
+	return added;
+    }
+
+    /**
+     * Records a new status of a user in the change log.
+     *
+     * @param uname The user
+     * @param status The new status, "+", "-" or "0"
+     * @throws IllegalArgumentException If uname or status is null, every
+     * reader of the log expects both
+     */
+    public void statusChanged(String uname, String status) {
+	if (uname == null || status == null) {
+	    throw new IllegalArgumentException("A status change needs a username and a status.");
+	}
+	changeLock.lock();
+	try {
+	    log(uname, status);
+	} finally {
+	    changeLock.unlock();
+	}
+    }
+
+    private void log(String uname, String status) {
+	version++;
+	int slot = (int) (version % logNames.length);
+	logNames[slot] = uname;
+	logStatus[slot] = status;
+    }
+
+    /**
+     * Returns the current version, as sent to clients. The version contains the
+     * start time of the server, so versions from an earlier run are not mixed up
+     * with the current one.
+     *
+     * @return the version
+     */
+    public String getVersion() {
+	changeLock.lock();
+	try {
+	    return token(version);
+	} finally {
+	    changeLock.unlock();
+	}
+    }
+
+    private String token(long v) {
+	return epoch + "." + v;
+    }
+
+    /**
+     * Returns the changes since a version the client got earlier.
+     *
+     * @param since A version from {@link #getVersion() getVersion} or an
+     * earlier delta, or anything else, like "-", if the client has no version
+     * @return the changes, with only the last status of every user, or a
+     * full snapshot if the version is unknown or older than the log
+     */
+    public Delta changesSince(String since) {
+	long from = parse(since);
+	changeLock.lock();
+	try {
+	    if (from < 0 || from > version || version - from > logNames.length) {
+		return new Delta(token(version), null);
+	    }
+	    Map<String, String> changes = new LinkedHashMap<>();
+	    for (long v = from + 1; v <= version; v++) {
+		int slot = (int) (v % logNames.length);
+		changes.remove(logNames[slot]);
+		changes.put(logNames[slot], logStatus[slot]);
+	    }
+	    return new Delta(token(version), changes);
+	} finally {
+	    changeLock.unlock();
+	}
+    }
+
+    private long parse(String since) {
+	if (since == null || !since.startsWith(epoch + ".")) {
+	    return -1;
+	}
+	try {
+	    return Long.parseLong(since.substring(epoch.length() + 1));
+	} catch (NumberFormatException e) {
+	    return -1;
+	}
+    }
+
+    /**
+     * Returns the number of registered users.
+     *
+     * @return number of users
+     */
+    public int size() {
+	return users.size();
+    }
+
+    /**
+     * Returns a read only view of all users.
+     *
+     * @return all users
+     */
+    public Collection<User> values() {
+	return Collections.unmodifiableCollection(users.values());
+    }
+
+    @Override
+    public Iterator<User> iterator() {
+	return values().iterator();
+    }
+
+    /**
+     * Answer to {@link #changesSince(String) changesSince}.
+     */
+    public static final class Delta {
+
+	private final String version;
+	private final Map<String, String> changes;
+
+	private Delta(String version, Map<String, String> changes) {
+	    this.version = version;
+	    this.changes = changes;
+	}
+
+	/**
+	 * Returns the version the client has after applying this delta.
+	 *
+	 * @return the new version
+	 */
+	public String getVersion() {
+	    return version;
+	}
+
+	/**
+	 * Returns true if the client must replace its list with a full snapshot.
+	 * The snapshot should be read after this delta was made, the client may
+	 * then get a change twice, but never miss one.
+	 *
+	 * @return if a full snapshot is needed
+	 */
+	public boolean isFull() {
+	    return changes == null;
+	}
+
+	/**
+	 * Returns the changes, username to status, oldest first.
+	 *
+	 * @return the changes, null if a full snapshot is needed
+	 */
+	public Map<String, String> getChanges() {
+	    return changes;
+	}
+    }
+}
@@ -0,0 +1,468 @@
+package model.store;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * {@link UserStore} with an append only journal and a compacted {@link Snapshot snapshot},
+ * both in one directory.<br>
+ * New users are appended to the journal. Every record is a length, a CRC32 and the user,
+ * so a torn or broken record at the end, left by a crash, is found and cut off at the
+ * next start. One writer thread takes every user waiting to be stored, writes them with
+ * one write and syncs the file once (group commit).<br>
+ * When the journal holds {@link #COMPACT_EVERY} users, the journal is merged into a new
+ * snapshot and emptied. Startup reads the binary snapshot and the short journal, no text
+ * is parsed.<br>
+ * On the first start the old text file, one "username;password" per line, is imported.
+ *
+ * @author Member(1-2-3-4)
+ */
+public class JournalUserStore implements UserStore {
+
+    /**
+     * Number of users in the journal that starts a compaction.
+     */
+    public static final int COMPACT_EVERY = 10000;
+    /**
+     * Longest username or password, in bytes of modified UTF-8.
+     */
+    public static final int MAX_FIELD = 0xFFFF;
+    private static final String SNAPSHOT = "users.snapshot";
+    private static final String JOURNAL = "users.journal";
+    private static final int MAX_RECORD = 2 * (0xFFFF + 2);
+    private static final Pending CLOSE = new Pending(null, null);
+
+    private final File snapshotFile;
+    private final boolean sync;
+    private final int compactEvery;
+    private final ReentrantLock journalLock = new ReentrantLock();
+    private final ReentrantReadWriteLock snapshotLock = new ReentrantReadWriteLock();
+    private final Map<String, String> journaled = new ConcurrentHashMap<>();
+    private final LinkedBlockingQueue<Pending> queue = new LinkedBlockingQueue<>();
+    private final FileChannel journal;
+    private final Thread writer;
+    private Snapshot snapshot;
+    private volatile boolean closed = false;
+
+    /**
+     * Opens the store with fsync on every commit, and compaction every
+     * {@link #COMPACT_EVERY} users.
+     *
+     * @param dir The directory, created if missing
+     * @param legacyFile Old text file imported if the directory has no store yet
+     * @throws IOException If the store could not be opened
+     */
+    public JournalUserStore(File dir, File legacyFile) throws IOException {
+	this(dir, legacyFile, COMPACT_EVERY, true);
+    }
+
+    /**
+     * Opens the store. Cuts off a broken end of the journal.
+     *
+     * @param dir The directory, created if missing
+     * @param legacyFile Old text file imported if the directory has no store yet,
+     * may be null
+     * @param compactEvery Number of users in the journal that starts a compaction
+     * @param sync If every commit is synced to disk
+     * @throws IOException If the store could not be opened
+     */
+    public JournalUserStore(File dir, File legacyFile, int compactEvery, boolean sync) throws IOException {
+	if (!dir.isDirectory() && !dir.mkdirs()) {
+	    throw new IOException("Could not create " + dir);
+	}
+	this.sync = sync;
+	this.compactEvery = compactEvery;
+	snapshotFile = new File(dir, SNAPSHOT);
+	File journalFile = new File(dir, JOURNAL);
+	if (!snapshotFile.exists()) {
+	    TreeMap<String, String> imported = new TreeMap<>();
+	    if (!journalFile.exists() && legacyFile != null && legacyFile.exists()) {
+		importText(legacyFile, imported);
+	    }
+	    Snapshot.write(snapshotFile, imported.entrySet().iterator(), imported.size());
+	}
+	snapshot = Snapshot.open(snapshotFile);
+	journal = FileChannel.open(journalFile.toPath(), StandardOpenOption.CREATE,
+		StandardOpenOption.READ, StandardOpenOption.WRITE);
+	long good = replay(journalFile);
+	if (good < journal.size()) {
+	    System.err.println("Cutting off broken end of " + journalFile + " at byte " + good);
+	    journal.truncate(good);
+	    journal.force(true);
+	}
+	journal.position(good);
+	writer = new Thread(this::writeLoop, "user-store");
+	writer.setDaemon(true);
+	writer.start();
+    }
+
+    private static void importText(File file, Map<String, String> users) throws IOException {
+	try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+	    String in;
+	    while ((in = reader.readLine()) != null) {
+		String[] user = in.split(";");
+		if (user.length == 2) {
+		    users.putIfAbsent(user[0], user[1]);
+		}
+	    }
+	}
+    }
+
+    /**
+     * Reads the journal into memory. Users already in the snapshot are skipped,
+     * they are left over from a compaction that stopped before the journal was
+     * emptied.
+     *
+     * @return the length of the journal up to the first broken record
+     */
+    private long replay(File journalFile) throws IOException {
+	long good = 0;
+	try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(journalFile)))) {
+	    CRC32 crc = new CRC32();
+	    while (true) {
+		int len = in.readInt();
+		int stored = in.readInt();
+		if (len < 0 || len > MAX_RECORD) {
+		    break;
+		}
+		byte[] record = new byte[len];
+		in.readFully(record);
+		crc.reset();
+		crc.update(record);
+		if ((int) crc.getValue() != stored) {
+		    break;
+		}
+		DataInputStream user = new DataInputStream(new ByteArrayInputStream(record));
+		String uname = user.readUTF();
+		String pswd = user.readUTF();
+		if (snapshot.lookup(uname) == null) {
+		    journaled.putIfAbsent(uname, pswd);
+		}
+		good += 8 + len;
+	    }
+	} catch (EOFException e) {
+	    //End of journal, or a torn record
+	}
+	return good;
+    }
+
+    /**
+     * The snapshot is split at its index entries into about four chunks per
+     * thread, and its CRC is checked by one more task next to them. The users
+     * in the journal are the last chunk.
+     */
+    @Override
+    public void load(Executor executor, int threads, Consumer<List<Map.Entry<String, String>>> chunk) throws IOException {
+	snapshotLock.readLock().lock();
+	try {
+	    Snapshot s = snapshot;
+	    int entries = s.indexSize();
+	    int step = Math.max(1, entries / Math.max(1, threads * 4));
+	    List<CompletableFuture<Void>> tasks = new ArrayList<>();
+	    tasks.add(CompletableFuture.runAsync(() -> {
+		try {
+		    s.verify();
+		} catch (IOException e) {
+		    throw new UncheckedIOException(e);
+		}
+	    }, executor));
+	    for (int from = 0; from < entries; from += step) {
+		int start = from;
+		int to = Math.min(entries, from + step);
+		tasks.add(CompletableFuture.runAsync(() -> {
+		    try {
+			chunk.accept(s.readRange(start, to));
+		    } catch (IOException e) {
+			throw new UncheckedIOException(e);
+		    }
+		}, executor));
+	    }
+	    try {
+		CompletableFuture.allOf(tasks.toArray(new CompletableFuture<?>[0])).join();
+	    } catch (CompletionException e) {
+		if (e.getCause() instanceof UncheckedIOException) {
+		    throw ((UncheckedIOException) e.getCause()).getCause();
+		}
+		throw e;
+	    }
+	} finally {
+	    snapshotLock.readLock().unlock();
+	}
+	List<Map.Entry<String, String>> rest = new ArrayList<>(journaled.entrySet());
+	if (!rest.isEmpty()) {
+	    chunk.accept(rest);
+	}
+    }
+
+    @Override
+    public long size() {
+	snapshotLock.readLock().lock();
+	try {
+	    return snapshot.size() + journaled.size();
+	} finally {
+	    snapshotLock.readLock().unlock();
+	}
+    }
+
+    @Override
+    public CompletableFuture<Void> append(String uname, String pswd) {
+	Pending pending = new Pending(uname, pswd);
+	if (closed) {
+	    pending.done.completeExceptionally(new IOException("User store is closed"));
+	} else if (Snapshot.utfLength(uname) > MAX_FIELD || Snapshot.utfLength(pswd) > MAX_FIELD) {
+	    //Refused here, so it can not fail the group commit of other users
+	    pending.done.completeExceptionally(new IOException("Username or password too long for the user store"));
+	} else {
+	    queue.add(pending);
+	}
+	return pending.done;
+    }
+
+    @Override
+    public String lookup(String uname) throws IOException {
+	String pswd = journaled.get(uname);
+	if (pswd != null) {
+	    return pswd;
+	}
+	return lookupSnapshot(uname);
+    }
+
+    private String lookupSnapshot(String uname) throws IOException {
+	snapshotLock.readLock().lock();
+	try {
+	    return snapshot.lookup(uname);
+	} finally {
+	    snapshotLock.readLock().unlock();
+	}
+    }
+
+    @Override
+    public void clear() throws IOException {
+	journalLock.lock();
+	try {
+	    Snapshot.write(snapshotFile, new TreeMap<String, String>().entrySet().iterator(), 0);
+	    replaceSnapshot();
+	} finally {
+	    journalLock.unlock();
+	}
+    }
+
+    /**
+     * Stores the waiting users and stops the writer.
+     *
+     * @throws IOException If the files could not be closed
+     */
+    @Override
+    public void close() throws IOException {
+	if (closed) {
+	    return;
+	}
+	closed = true;
+	queue.add(CLOSE);
+	try {
+	    writer.join();
+	} catch (InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	}
+	journal.close();
+	snapshot.close();
+    }
+
+    /**
+     * The single writer. Every turn commits all users waiting in the queue.
+     */
+    private void writeLoop() {
+	List<Pending> batch = new ArrayList<>();
+	ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+	boolean stop = false;
+	while (!stop) {
+	    try {
+		batch.add(queue.take());
+	    } catch (InterruptedException e) {
+		return;
+	    }
+	    queue.drainTo(batch);
+	    stop = batch.remove(CLOSE);
+	    if (batch.isEmpty()) {
+		continue;
+	    }
+	    //A user that can not be written fails alone, the rest are committed
+	    List<Pending> written = new ArrayList<>(batch.size());
+	    bytes.reset();
+	    for (Pending p : batch) {
+		try {
+		    writeRecord(bytes, p.uname, p.pswd);
+		    written.add(p);
+		} catch (IOException e) {
+		    p.done.completeExceptionally(e);
+		}
+	    }
+	    batch.clear();
+	    if (written.isEmpty()) {
+		continue;
+	    }
+	    try {
+		journalLock.lock();
+		try {
+		    ByteBuffer buf = ByteBuffer.wrap(bytes.toByteArray());
+		    while (buf.hasRemaining()) {
+			journal.write(buf);
+		    }
+		    if (sync) {
+			journal.force(false);
+		    }
+		    for (Pending p : written) {
+			//The first registration of a name wins, like in the text file
+			if (lookupSnapshot(p.uname) == null) {
+			    journaled.putIfAbsent(p.uname, p.pswd);
+			}
+		    }
+		    if (journaled.size() >= compactEvery) {
+			compact();
+		    }
+		} finally {
+		    journalLock.unlock();
+		}
+		for (Pending p : written) {
+		    p.done.complete(null);
+		}
+	    } catch (IOException | RuntimeException e) {
+		for (Pending p : written) {
+		    p.done.completeExceptionally(e);
+		}
+	    }
+	}
+    }
+
+    /**
+     * Writes one record. Nothing is written to bytes if the record fails.
+     */
+    private static void writeRecord(ByteArrayOutputStream bytes, String uname, String pswd) throws IOException {
+	ByteArrayOutputStream record = new ByteArrayOutputStream(64);
+	DataOutputStream out = new DataOutputStream(record);
+	out.writeUTF(uname);
+	out.writeUTF(pswd);
+	CRC32 crc = new CRC32();
+	crc.update(record.toByteArray());
+	DataOutputStream header = new DataOutputStream(bytes);
+	header.writeInt(record.size());
+	header.writeInt((int) crc.getValue());
+	record.writeTo(bytes);
+    }
+
+    /**
+     * Merges the journal into a new snapshot and empties the journal. Called
+     * with the journal lock, so no user is written to the journal meanwhile.
+     * Lookups keep using the old snapshot until the new one is in place.
+     */
+    private void compact() throws IOException {
+	TreeMap<String, String> fresh = new TreeMap<>(journaled);
+	try (Snapshot.Cursor old = snapshot.cursor()) {
+	    long count = snapshot.size() + fresh.size();
+	    try {
+		Snapshot.write(snapshotFile, new Merge(old, fresh.entrySet().iterator()), count);
+	    } catch (UncheckedIOException e) {
+		throw e.getCause();
+	    }
+	    old.verify();
+	}
+	replaceSnapshot();
+    }
+
+    /**
+     * Opens the new snapshot file and empties the journal. Called with the journal lock.
+     */
+    private void replaceSnapshot() throws IOException {
+	Snapshot fresh = Snapshot.open(snapshotFile);
+	snapshotLock.writeLock().lock();
+	try {
+	    snapshot.close();
+	    snapshot = fresh;
+	} finally {
+	    snapshotLock.writeLock().unlock();
+	}
+	journal.truncate(0);
+	journal.position(0);
+	journal.force(true);
+	journaled.clear();
+    }
+
+    /**
+     * Merges two iterators sorted by username.
+     */
+    private static final class Merge implements Iterator<Map.Entry<String, String>> {
+
+	private final Iterator<Map.Entry<String, String>> a;
+	private final Iterator<Map.Entry<String, String>> b;
+	private Map.Entry<String, String> nextA;
+	private Map.Entry<String, String> nextB;
+
+	Merge(Iterator<Map.Entry<String, String>> a, Iterator<Map.Entry<String, String>> b) {
+	    this.a = a;
+	    this.b = b;
+	    nextA = a.hasNext() ? a.next() : null;
+	    nextB = b.hasNext() ? b.next() : null;
+	}
+
+	@Override
+	public boolean hasNext() {
+	    return nextA != null || nextB != null;
+	}
+
+	@Override
+	public Map.Entry<String, String> next() {
+	    Map.Entry<String, String> result;
+	    if (nextA == null && nextB == null) {
+		throw new NoSuchElementException();
+	    }
+	    if (nextB == null || (nextA != null && nextA.getKey().compareTo(nextB.getKey()) <= 0)) {
+		result = nextA;
+		nextA = a.hasNext() ? a.next() : null;
+	    } else {
+		result = nextB;
+		nextB = b.hasNext() ? b.next() : null;
+	    }
+	    return result;
+	}
+    }
+
+    private static final class Pending {
+
+	final String uname;
+	final String pswd;
+	final CompletableFuture<Void> done = new CompletableFuture<>();
+
+	Pending(String uname, String pswd) {
+	    this.uname = uname;
+	    this.pswd = pswd;
+	}
+    }
+}
@@ -0,0 +1,565 @@
+package model.store;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * Durable store and forward log for chat messages to users that are not online.<br>
+ * Messages are appended to segment files, each named after the log offset of its
+ * first byte. A record is length, CRC32, recipient, sender and text. Only the
+ * offsets of undelivered messages are kept in memory, per recipient, so a backlog
+ * costs 8 bytes per message and the texts stay on disk until they are read.<br>
+ * When messages are delivered, the recipient's delivered offset is appended to a
+ * cursor file, and a restart skips every message up to it. A segment is deleted
+ * when every message in it is delivered.<br>
+ * An append writes to the file at once, and a sync thread forces the files to disk
+ * every {@link #SYNC_MILLIS} ms. A crash of the machine loses at most the messages
+ * of the last window, and a sender never waits for the disk.
+ *
+ * @author Member(1-2-3-4)
+ */
+public final class MessageLog implements Closeable {
+
+    /**
+     * Size at which a new segment is started.
+     */
+    public static final long SEGMENT_BYTES = 16 * 1024 * 1024;
+    /**
+     * How often appended messages are forced to disk.
+     */
+    public static final long SYNC_MILLIS = 50;
+    private static final String SUFFIX = ".log";
+    private static final String CURSORS = "cursors";
+    private static final int MAX_RECORD = 64 * 1024 * 1024;
+
+    private final File dir;
+    private final long segmentBytes;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final TreeMap<Long, Segment> segments = new TreeMap<>();
+    private final Map<String, OffsetQueue> pending = new HashMap<>();
+    private final Map<String, Long> cursors = new HashMap<>();
+    private final ScheduledExecutorService syncer;
+    private FileChannel cursorFile;
+    private Segment active;
+    private volatile boolean dirty = false;
+    private boolean closed = false;
+
+    /**
+     * Opens the log in a directory, and creates it if needed.
+     *
+     * @param dir The directory
+     * @throws IOException If the log could not be read
+     */
+    public MessageLog(File dir) throws IOException {
+	this(dir, SEGMENT_BYTES);
+    }
+
+    /**
+     * Opens the log in a directory, and creates it if needed. Broken records at
+     * the end of a segment, left by a crash, are cut off.
+     *
+     * @param dir The directory
+     * @param segmentBytes Size at which a new segment is started
+     * @throws IOException If the log could not be read
+     */
+    public MessageLog(File dir, long segmentBytes) throws IOException {
+	if (!dir.isDirectory() && !dir.mkdirs()) {
+	    throw new IOException("Could not create " + dir);
+	}
+	this.dir = dir;
+	this.segmentBytes = segmentBytes;
+	readCursors();
+	File[] files = dir.listFiles((d, name) -> name.endsWith(SUFFIX));
+	if (files != null) {
+	    for (File file : files) {
+		String name = file.getName();
+		segments.put(Long.parseLong(name.substring(0, name.length() - SUFFIX.length())), null);
+	    }
+	}
+	for (Long base : new ArrayList<>(segments.keySet())) {
+	    segments.put(base, scan(base));
+	}
+	if (segments.isEmpty()) {
+	    active = openSegment(0);
+	} else {
+	    active = segments.lastEntry().getValue();
+	}
+	for (Segment s : new ArrayList<>(segments.values())) {
+	    deleteIfDelivered(s);
+	}
+	writeCursors();
+	syncer = Executors.newSingleThreadScheduledExecutor(r -> {
+	    Thread t = new Thread(r, "message-log-sync");
+	    t.setDaemon(true);
+	    return t;
+	});
+	syncer.scheduleWithFixedDelay(this::sync, SYNC_MILLIS, SYNC_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stores a message for a recipient.
+     *
+     * @param to The recipient
+     * @param from The sender
+     * @param text The message
+     * @return the offset of the message in the log
+     * @throws IOException If the message could not be written
+     */
+    public long append(String to, String from, String text) throws IOException {
+	byte[] record = encode(to, from, text);
+	lock.lock();
+	try {
+	    if (closed) {
+		throw new IOException("Message log is closed");
+	    }
+	    if (active.size > 0 && active.size + record.length > segmentBytes) {
+		active.channel.force(false);
+		active = openSegment(active.base + active.size);
+	    }
+	    long offset = active.base + active.size;
+	    write(active.channel, ByteBuffer.wrap(record), active.size);
+	    active.size += record.length;
+	    active.undelivered++;
+	    pending.computeIfAbsent(to, k -> new OffsetQueue()).add(offset);
+	    dirty = true;
+	    return offset;
+	} finally {
+	    lock.unlock();
+	}
+    }
+
+    /**
+     * Returns the number of undelivered messages to a user.
+     *
+     * @param uname The recipient
+     * @return number of messages
+     */
+    public int pending(String uname) {
+	lock.lock();
+	try {
+	    OffsetQueue queue = pending.get(uname);
+	    return queue == null ? 0 : queue.size();
+	} finally {
+	    lock.unlock();
+	}
+    }
+
+    /**
+     * Reads the oldest undelivered messages to a user. The messages stay in the
+     * log until they are marked with {@link #delivered(String, long) delivered},
+     * so only one reader per user should run at a time.
+     *
+     * @param uname The recipient
+     * @param max Maximum number of messages
+     * @return the messages, oldest first, empty if there are none
+     * @throws IOException If the log could not be read
+     */
+    public List<StoredMessage> read(String uname, int max) throws IOException {
+	long[] offsets;
+	Segment[] from;
+	lock.lock();
+	try {
+	    OffsetQueue queue = pending.get(uname);
+	    if (queue == null) {
+		return Collections.emptyList();
+	    }
+	    offsets = queue.peek(max);
+	    from = new Segment[offsets.length];
+	    for (int i = 0; i < offsets.length; i++) {
+		from[i] = segments.floorEntry(offsets[i]).getValue();
+	    }
+	} finally {
+	    lock.unlock();
+	}
+	List<StoredMessage> messages = new ArrayList<>(offsets.length);
+	for (int i = 0; i < offsets.length; i++) {
+	    long pos = offsets[i] - from[i].base;
+	    ByteBuffer header = read(from[i].channel, pos, 8);
+	    int len = header.getInt();
+	    int crc = header.getInt();
+	    byte[] payload = read(from[i].channel, pos + 8, len).array();
+	    if (crc(payload) != crc) {
+		throw new IOException("Message at offset " + offsets[i] + " is broken");
+	    }
+	    DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+	    in.readUTF();
+	    String sender = in.readUTF();
+	    byte[] text = new byte[in.readInt()];
+	    in.readFully(text);
+	    messages.add(new StoredMessage(offsets[i], sender, new String(text, StandardCharsets.UTF_8)));
+	}
+	return messages;
+    }
+
+    /**
+     * Marks every message to a user up to an offset as delivered. Segments
+     * with only delivered messages are deleted.
+     *
+     * @param uname The recipient
+     * @param upTo Offset of the last delivered message
+     * @throws IOException If the cursor could not be written
+     */
+    public void delivered(String uname, long upTo) throws IOException {
+	lock.lock();
+	try {
+	    if (closed) {
+		throw new IOException("Message log is closed");
+	    }
+	    OffsetQueue queue = pending.get(uname);
+	    if (queue == null) {
+		return;
+	    }
+	    while (queue.size() > 0 && queue.first() <= upTo) {
+		Segment s = segments.floorEntry(queue.remove()).getValue();
+		s.undelivered--;
+		deleteIfDelivered(s);
+	    }
+	    if (queue.size() == 0) {
+		pending.remove(uname);
+	    }
+	    cursors.put(uname, upTo);
+	    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+	    writeCursor(bytes, uname, upTo);
+	    write(cursorFile, ByteBuffer.wrap(bytes.toByteArray()), cursorFile.size());
+	    dirty = true;
+	} finally {
+	    lock.unlock();
+	}
+    }
+
+    /**
+     * Forces the log to disk and closes it.
+     *
+     * @throws IOException If the files could not be closed
+     */
+    @Override
+    public void close() throws IOException {
+	syncer.shutdownNow();
+	lock.lock();
+	try {
+	    if (closed) {
+		return;
+	    }
+	    closed = true;
+	    for (Segment s : segments.values()) {
+		s.channel.force(false);
+		s.channel.close();
+	    }
+	    cursorFile.force(false);
+	    cursorFile.close();
+	} finally {
+	    lock.unlock();
+	}
+    }
+
+    private void sync() {
+	if (!dirty) {
+	    return;
+	}
+	dirty = false;
+	FileChannel segment;
+	lock.lock();
+	try {
+	    if (closed) {
+		return;
+	    }
+	    segment = active.channel;
+	} finally {
+	    lock.unlock();
+	}
+	try {
+	    segment.force(false);
+	    cursorFile.force(false);
+	} catch (IOException e) {
+	    //Closed by a new segment or by close(), both force the file first
+	}
+    }
+
+    /**
+     * Reads a segment at startup, adds its undelivered messages and cuts it off
+     * at the first broken record.
+     */
+    private Segment scan(long base) throws IOException {
+	Segment s = openSegment(base);
+	long pos = 0;
+	try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(s.file), 64 * 1024))) {
+	    while (true) {
+		int len = in.readInt();
+		int crc = in.readInt();
+		if (len < 0 || len > MAX_RECORD) {
+		    break;
+		}
+		byte[] payload = new byte[len];
+		in.readFully(payload);
+		if (crc(payload) != crc) {
+		    break;
+		}
+		String to = new DataInputStream(new ByteArrayInputStream(payload)).readUTF();
+		long offset = base + pos;
+		if (offset > cursors.getOrDefault(to, -1L)) {
+		    pending.computeIfAbsent(to, k -> new OffsetQueue()).add(offset);
+		    s.undelivered++;
+		}
+		pos += 8 + len;
+	    }
+	} catch (EOFException e) {
+	    //End of segment, or a torn record
+	}
+	if (pos < s.channel.size()) {
+	    System.err.println("Cutting off broken end of " + s.file + " at byte " + pos);
+	    s.channel.truncate(pos);
+	    s.channel.force(true);
+	}
+	s.size = pos;
+	return s;
+    }
+
+    private Segment openSegment(long base) throws IOException {
+	File file = new File(dir, String.format("%020d%s", base, SUFFIX));
+	Segment s = new Segment(base, file, FileChannel.open(file.toPath(),
+		StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE));
+	segments.put(base, s);
+	return s;
+    }
+
+    private void deleteIfDelivered(Segment s) throws IOException {
+	if (s.undelivered > 0 || s == active) {
+	    return;
+	}
+	segments.remove(s.base);
+	s.channel.close();
+	Files.deleteIfExists(s.file.toPath());
+    }
+
+    private void readCursors() throws IOException {
+	File file = new File(dir, CURSORS);
+	if (!file.exists()) {
+	    return;
+	}
+	try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+	    while (true) {
+		int len = in.readInt();
+		int crc = in.readInt();
+		if (len < 0 || len > MAX_RECORD) {
+		    break;
+		}
+		byte[] payload = new byte[len];
+		in.readFully(payload);
+		if (crc(payload) != crc) {
+		    break;
+		}
+		DataInputStream cursor = new DataInputStream(new ByteArrayInputStream(payload));
+		cursors.put(cursor.readUTF(), cursor.readLong());
+	    }
+	} catch (EOFException e) {
+	    //End of file, or a torn record
+	}
+    }
+
+    /**
+     * Writes the cursor file again with only the cursors still needed, and
+     * opens it for appending.
+     */
+    private void writeCursors() throws IOException {
+	long oldest = segments.firstKey();
+	File file = new File(dir, CURSORS);
+	File tmp = new File(dir, CURSORS + ".tmp");
+	try (FileOutputStream out = new FileOutputStream(tmp)) {
+	    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+	    for (Map.Entry<String, Long> cursor : cursors.entrySet()) {
+		if (cursor.getValue() >= oldest) {
+		    writeCursor(bytes, cursor.getKey(), cursor.getValue());
+		}
+	    }
+	    bytes.writeTo(out);
+	    out.getFD().sync();
+	}
+	Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	cursors.values().removeIf(offset -> offset < oldest);
+	cursorFile = FileChannel.open(file.toPath(), StandardOpenOption.WRITE);
+    }
+
+    private static void writeCursor(ByteArrayOutputStream bytes, String uname, long offset) throws IOException {
+	ByteArrayOutputStream payload = new ByteArrayOutputStream();
+	DataOutputStream out = new DataOutputStream(payload);
+	out.writeUTF(uname);
+	out.writeLong(offset);
+	writeRecord(bytes, payload.toByteArray());
+    }
+
+    private static byte[] encode(String to, String from, String text) throws IOException {
+	byte[] body = text.getBytes(StandardCharsets.UTF_8);
+	ByteArrayOutputStream payload = new ByteArrayOutputStream(body.length + 64);
+	DataOutputStream out = new DataOutputStream(payload);
+	out.writeUTF(to);
+	out.writeUTF(from);
+	out.writeInt(body.length);
+	out.write(body);
+	if (payload.size() > MAX_RECORD) {
+	    throw new IOException("Message is too large to store");
+	}
+	ByteArrayOutputStream record = new ByteArrayOutputStream(payload.size() + 8);
+	writeRecord(record, payload.toByteArray());
+	return record.toByteArray();
+    }
+
+    private static void writeRecord(ByteArrayOutputStream bytes, byte[] payload) throws IOException {
+	DataOutputStream out = new DataOutputStream(bytes);
+	out.writeInt(payload.length);
+	out.writeInt(crc(payload));
+	out.write(payload);
+    }
+
+    private static int crc(byte[] payload) {
+	CRC32 crc = new CRC32();
+	crc.update(payload);
+	return (int) crc.getValue();
+    }
+
+    private static void write(FileChannel channel, ByteBuffer buf, long pos) throws IOException {
+	while (buf.hasRemaining()) {
+	    pos += channel.write(buf, pos);
+	}
+    }
+
+    private static ByteBuffer read(FileChannel channel, long pos, int len) throws IOException {
+	ByteBuffer buf = ByteBuffer.allocate(len);
+	while (buf.hasRemaining()) {
+	    if (channel.read(buf, pos + buf.position()) < 0) {
+		throw new EOFException("Message log ends early");
+	    }
+	}
+	buf.flip();
+	return buf;
+    }
+
+    /**
+     * A message read from the log.
+     */
+    public static final class StoredMessage {
+
+	private final long offset;
+	private final String from;
+	private final String text;
+
+	private StoredMessage(long offset, String from, String text) {
+	    this.offset = offset;
+	    this.from = from;
+	    this.text = text;
+	}
+
+	/**
+	 * Returns the offset, used to mark the message as delivered.
+	 *
+	 * @return the offset in the log
+	 */
+	public long getOffset() {
+	    return offset;
+	}
+
+	/**
+	 * Returns the sender.
+	 *
+	 * @return the username of the sender
+	 */
+	public String getFrom() {
+	    return from;
+	}
+
+	/**
+	 * Returns the message.
+	 *
+	 * @return the text
+	 */
+	public String getText() {
+	    return text;
+	}
+    }
+
+    private static final class Segment {
+
+	final long base;
+	final File file;
+	final FileChannel channel;
+	long size = 0;
+	int undelivered = 0;
+
+	Segment(long base, File file, FileChannel channel) {
+	    this.base = base;
+	    this.file = file;
+	    this.channel = channel;
+	}
+    }
+
+    /**
+     * Offsets of the undelivered messages to one user, a growing ring of longs.
+     */
+    private static final class OffsetQueue {
+
+	private long[] items = new long[4];
+	private int head = 0;
+	private int size = 0;
+
+	void add(long offset) {
+	    if (size == items.length) {
+		long[] bigger = new long[items.length * 2];
+		for (int i = 0; i < size; i++) {
+		    bigger[i] = items[(head + i) % items.length];
+		}
+		items = bigger;
+		head = 0;
+	    }
+	    items[(head + size) % items.length] = offset;
+	    size++;
+	}
+
+	long first() {
+	    return items[head];
+	}
+
+	long remove() {
+	    long offset = items[head];
+	    head = (head + 1) % items.length;
+	    size--;
+	    return offset;
+	}
+
+	long[] peek(int max) {
+	    long[] first = new long[Math.min(max, size)];
+	    for (int i = 0; i < first.length; i++) {
+		first[i] = items[(head + i) % items.length];
+	    }
+	    return first;
+	}
+
+	int size() {
+	    return size;
+	}
+    }
+}
@@ -0,0 +1,405 @@
+package model.store;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * A compacted, read only file with users sorted by username, and its sparse index.<br>
+ * The snapshot file is a header (magic, format, number of users), the users as
+ * two UTF strings each, and a CRC32 of everything before it. The index file
+ * holds the CRC of its snapshot and the username and file offset of every
+ * {@link #INDEX_EVERY}th user, so one user is found by a binary search in memory
+ * and one short read. An index that does not match its snapshot is built again.<br>
+ * A new snapshot is written to a temporary file, synced and renamed over the
+ * old one, so a crash leaves either the old or the new snapshot.
+ * Reads use positional reads on one shared file, a reading thread must not be
+ * interrupted, as that closes the file for every reader.
+ *
+ * @author Member(1-2-3-4)
+ */
+final class Snapshot implements AutoCloseable {
+
+    static final int INDEX_EVERY = 128;
+    private static final int MAGIC = 0x534D5553;
+    private static final int FORMAT = 1;
+    private static final int HEADER = 16;
+
+    private final File file;
+    private final RandomAccessFile raf;
+    private final List<String> indexKeys;
+    private final long[] indexOffsets;
+    private final long count;
+    private final long end;
+
+    private Snapshot(File file, List<String> indexKeys, long[] indexOffsets, long count) throws IOException {
+	this.file = file;
+	this.raf = new RandomAccessFile(file, "r");
+	this.indexKeys = indexKeys;
+	this.indexOffsets = indexOffsets;
+	this.count = count;
+	this.end = raf.length() - 8;
+    }
+
+    /**
+     * Opens a snapshot and reads its index. A missing or broken index is built
+     * again from the snapshot.
+     *
+     * @param file The snapshot file, the index is the same name with ".idx"
+     * @return the snapshot
+     * @throws IOException If the snapshot can not be read
+     */
+    static Snapshot open(File file) throws IOException {
+	File idx = indexFile(file);
+	long count;
+	long crc;
+	try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+	    count = readHeader(in, file);
+	}
+	try (RandomAccessFile r = new RandomAccessFile(file, "r")) {
+	    r.seek(r.length() - 8);
+	    crc = r.readLong();
+	}
+	List<String> keys = new ArrayList<>();
+	List<Long> offsets = new ArrayList<>();
+	try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(idx)))) {
+	    if (in.readLong() != crc) {
+		throw new IOException("Index does not belong to the snapshot");
+	    }
+	    int n = in.readInt();
+	    for (int i = 0; i < n; i++) {
+		keys.add(in.readUTF());
+		offsets.add(in.readLong());
+	    }
+	} catch (IOException e) {
+	    keys.clear();
+	    offsets.clear();
+	    rebuildIndex(file, count, keys, offsets);
+	    writeIndex(idx, crc, keys, offsets);
+	}
+	long[] offs = new long[offsets.size()];
+	for (int i = 0; i < offs.length; i++) {
+	    offs[i] = offsets.get(i);
+	}
+	return new Snapshot(file, keys, offs, count);
+    }
+
+    /**
+     * Writes a new snapshot and index, and replaces the old ones.
+     *
+     * @param file The snapshot file
+     * @param users Username to password hash, sorted by username
+     * @param count Number of users in the iterator
+     * @throws IOException If writing failed, the old snapshot is then unchanged
+     */
+    static void write(File file, Iterator<Map.Entry<String, String>> users, long count) throws IOException {
+	File tmp = new File(file.getPath() + ".tmp");
+	List<String> keys = new ArrayList<>();
+	List<Long> offsets = new ArrayList<>();
+	CRC32 crc = new CRC32();
+	try (FileOutputStream fos = new FileOutputStream(tmp)) {
+	    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new CheckedOutputStream(fos, crc), 64 * 1024));
+	    out.writeInt(MAGIC);
+	    out.writeInt(FORMAT);
+	    out.writeLong(count);
+	    long written = 0;
+	    long offset = HEADER;
+	    while (users.hasNext()) {
+		Map.Entry<String, String> user = users.next();
+		if (written % INDEX_EVERY == 0) {
+		    keys.add(user.getKey());
+		    offsets.add(offset);
+		}
+		int before = out.size();
+		out.writeUTF(user.getKey());
+		out.writeUTF(user.getValue());
+		offset += out.size() - before;
+		written++;
+	    }
+	    if (written != count) {
+		throw new IOException("Snapshot count mismatch: " + written + " != " + count);
+	    }
+	    out.flush();
+	    new DataOutputStream(fos).writeLong(crc.getValue());
+	    fos.getFD().sync();
+	}
+	writeIndex(new File(tmp.getPath() + ".idx"), crc.getValue(), keys, offsets);
+	Files.move(new File(tmp.getPath() + ".idx").toPath(), indexFile(file).toPath(),
+		StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Opens a cursor reading every user in username order.
+     *
+     * @return the cursor, must be closed
+     * @throws IOException If the snapshot could not be opened
+     */
+    Cursor cursor() throws IOException {
+	return new Cursor();
+    }
+
+    /**
+     * Returns the number of entries in the sparse index. The users between two
+     * index entries can be read without the rest, see {@link #readRange(int, int) readRange}.
+     *
+     * @return number of index entries
+     */
+    int indexSize() {
+	return indexOffsets.length;
+    }
+
+    /**
+     * Reads the users from one index entry up to another, with one positional
+     * read. Safe to call from several threads at once. The CRC is not checked,
+     * see {@link #verify() verify}.
+     *
+     * @param from First index entry
+     * @param to Index entry after the last one read, or {@link #indexSize() indexSize}
+     * to read to the end
+     * @return the users, in username order
+     * @throws IOException If reading failed or the range is broken
+     */
+    List<Map.Entry<String, String>> readRange(int from, int to) throws IOException {
+	byte[] block = read(indexOffsets[from], to < indexOffsets.length ? indexOffsets[to] : end);
+	List<Map.Entry<String, String>> users = new ArrayList<>((to - from) * INDEX_EVERY);
+	DataInputStream in = new DataInputStream(new ByteArrayInputStream(block));
+	while (in.available() > 0) {
+	    users.add(new AbstractMap.SimpleImmutableEntry<>(in.readUTF(), in.readUTF()));
+	}
+	return users;
+    }
+
+    /**
+     * Checks the CRC of the whole snapshot without parsing the users.
+     *
+     * @throws IOException If the snapshot is broken
+     */
+    void verify() throws IOException {
+	CRC32 crc = new CRC32();
+	ByteBuffer buf = ByteBuffer.allocate(1024 * 1024);
+	long pos = 0;
+	while (pos < end) {
+	    buf.clear();
+	    buf.limit((int) Math.min(buf.capacity(), end - pos));
+	    int n = raf.getChannel().read(buf, pos);
+	    if (n < 0) {
+		throw new EOFException("Snapshot " + file + " ends early");
+	    }
+	    buf.flip();
+	    crc.update(buf);
+	    pos += n;
+	}
+	if (ByteBuffer.wrap(read(end, end + 8)).getLong() != crc.getValue()) {
+	    throw new IOException("Snapshot " + file + " is broken, CRC does not match");
+	}
+    }
+
+    /**
+     * Reads the users of the snapshot one by one. Read errors are thrown as
+     * UncheckedIOException from {@link #next() next}.
+     */
+    final class Cursor implements Iterator<Map.Entry<String, String>>, AutoCloseable {
+
+	private final CRC32 crc = new CRC32();
+	private final CheckedInputStream checked;
+	private final DataInputStream in;
+	private long read = 0;
+
+	private Cursor() throws IOException {
+	    checked = new CheckedInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024), crc);
+	    in = new DataInputStream(checked);
+	    try {
+		readHeader(in, file);
+	    } catch (IOException e) {
+		in.close();
+		throw e;
+	    }
+	}
+
+	@Override
+	public boolean hasNext() {
+	    return read < count;
+	}
+
+	@Override
+	public Map.Entry<String, String> next() {
+	    if (!hasNext()) {
+		throw new NoSuchElementException();
+	    }
+	    try {
+		Map.Entry<String, String> user = new AbstractMap.SimpleImmutableEntry<>(in.readUTF(), in.readUTF());
+		read++;
+		return user;
+	    } catch (IOException e) {
+		throw new UncheckedIOException(e);
+	    }
+	}
+
+	/**
+	 * Checks the CRC after the last user is read.
+	 *
+	 * @throws IOException If the snapshot is broken
+	 */
+	void verify() throws IOException {
+	    long expected = crc.getValue();
+	    if (in.readLong() != expected) {
+		throw new IOException("Snapshot " + file + " is broken, CRC does not match");
+	    }
+	}
+
+	@Override
+	public void close() throws IOException {
+	    in.close();
+	}
+    }
+
+    /**
+     * Reads bytes with a positional read, which does not move the file pointer
+     * and can run in several threads at once.
+     */
+    private byte[] read(long start, long stop) throws IOException {
+	byte[] block = new byte[(int) (stop - start)];
+	ByteBuffer buf = ByteBuffer.wrap(block);
+	while (buf.hasRemaining()) {
+	    if (raf.getChannel().read(buf, start + buf.position()) < 0) {
+		throw new EOFException("Snapshot " + file + " ends early");
+	    }
+	}
+	return block;
+    }
+
+    /**
+     * Finds one user with the index and one read of at most {@link #INDEX_EVERY} users.
+     *
+     * @param uname The username
+     * @return the password hash, or null if not in the snapshot
+     * @throws IOException If reading failed
+     */
+    String lookup(String uname) throws IOException {
+	int i = Collections.binarySearch(indexKeys, uname);
+	if (i < 0) {
+	    i = -i - 2;
+	}
+	if (i < 0) {
+	    return null;
+	}
+	byte[] block = read(indexOffsets[i], i + 1 < indexOffsets.length ? indexOffsets[i + 1] : end);
+	DataInputStream in = new DataInputStream(new ByteArrayInputStream(block));
+	try {
+	    while (true) {
+		String name = in.readUTF();
+		String pswd = in.readUTF();
+		int cmp = name.compareTo(uname);
+		if (cmp == 0) {
+		    return pswd;
+		}
+		if (cmp > 0) {
+		    return null;
+		}
+	    }
+	} catch (EOFException e) {
+	    return null;
+	}
+    }
+
+    /**
+     * Returns the number of users.
+     *
+     * @return number of users
+     */
+    long size() {
+	return count;
+    }
+
+    @Override
+    public void close() throws IOException {
+	raf.close();
+    }
+
+    private static File indexFile(File file) {
+	return new File(file.getPath() + ".idx");
+    }
+
+    private static long readHeader(DataInputStream in, File file) throws IOException {
+	if (in.readInt() != MAGIC || in.readInt() != FORMAT) {
+	    throw new IOException(file + " is not a user snapshot");
+	}
+	return in.readLong();
+    }
+
+    private static void rebuildIndex(File file, long count, List<String> keys, List<Long> offsets) throws IOException {
+	try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+	    readHeader(in, file);
+	    long offset = HEADER;
+	    for (long i = 0; i < count; i++) {
+		String name = in.readUTF();
+		String pswd = in.readUTF();
+		if (i % INDEX_EVERY == 0) {
+		    keys.add(name);
+		    offsets.add(offset);
+		}
+		//Two bytes of length before each string
+		offset += 4 + utfLength(name) + utfLength(pswd);
+	    }
+	}
+    }
+
+    /**
+     * Returns the length of a string in modified UTF-8, as written by
+     * writeUTF, without the two bytes of length before it.
+     *
+     * @param s The string
+     * @return number of bytes
+     */
+    static int utfLength(String s) {
+	int len = 0;
+	for (int i = 0; i < s.length(); i++) {
+	    char c = s.charAt(i);
+	    if (c >= 1 && c <= 0x7F) {
+		len++;
+	    } else if (c <= 0x7FF) {
+		len += 2;
+	    } else {
+		len += 3;
+	    }
+	}
+	return len;
+    }
+
+    private static void writeIndex(File idx, long crc, List<String> keys, List<Long> offsets) throws IOException {
+	try (FileOutputStream fos = new FileOutputStream(idx)) {
+	    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+	    out.writeLong(crc);
+	    out.writeInt(keys.size());
+	    for (int i = 0; i < keys.size(); i++) {
+		out.writeUTF(keys.get(i));
+		out.writeLong(offsets.get(i));
+	    }
+	    out.flush();
+	    fos.getFD().sync();
+	}
+    }
+}
@@ -0,0 +1,64 @@
+package model.store;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+
+/**
+ * Persistent storage of registered users, username and password hash.
+ * The status of a user is not stored, every user is offline after a restart.
+ *
+ * @author Member(1-2-3-4)
+ */
+public interface UserStore extends Closeable {
+
+    /**
+     * Reads every stored user in chunks, parsed in parallel. Returns when every
+     * chunk is handed on. A username is given at most once.
+     *
+     * @param executor Runs the chunks
+     * @param threads Number of threads of the executor, used to size the chunks
+     * @param chunk Gets the users of one chunk, username and password hash.
+     * Called from several threads at once.
+     * @throws IOException If the store could not be read, some chunks may be
+     * handed on already
+     */
+    void load(Executor executor, int threads, Consumer<List<Map.Entry<String, String>>> chunk) throws IOException;
+
+    /**
+     * Returns the number of stored users.
+     *
+     * @return number of users
+     */
+    long size();
+
+    /**
+     * Stores a new user. Returns at once, the user is written by the store.
+     *
+     * @param uname The username
+     * @param pswd The password hash
+     * @return Completes when the user is safely on disk, or exceptionally if
+     * writing failed
+     */
+    CompletableFuture<Void> append(String uname, String pswd);
+
+    /**
+     * Finds one stored user without loading the others.
+     *
+     * @param uname The username
+     * @return the password hash, or null if the user is not stored
+     * @throws IOException If the store could not be read
+     */
+    String lookup(String uname) throws IOException;
+
+    /**
+     * Removes every stored user.
+     *
+     * @throws IOException If the store could not be written
+     */
+    void clear() throws IOException;
+}
@@ -0,0 +1,94 @@
+package model.protocol;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import com.sun.management.ThreadMXBean;
+
+/**
+ * Measures the garbage made for one routed chat message: the line from the
+ * sender decoded by {@link FrameDecoder}, and the frame to the receiver encoded
+ * by {@link FrameCodec}, in both protocol versions. Compared with the
+ * String.split path the server used before, which built a String of the line,
+ * split it, and joined the body again with a StringBuilder.
+ * Not a unit test, run it as a main class. Prints the bytes allocated by the
+ * thread per message, measured with ThreadMXBean.
+ *
+ * @author Member(1-2-3-4)
+ */
+public class FrameCodecBenchmark {
+
+    private static final int OPS = 200000;
+    private static final int ROUNDS = 5;
+
+    private static final String TO = "bob";
+    private static final String FROM = "alice";
+    private static final String TEXT = "Are we still meeting at twelve?";
+
+    private static final ThreadMXBean THREADS = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    //Keeps the results alive, so the JIT can not remove the work
+    private static int sink;
+
+    public static void main(String[] args) throws IOException {
+	byte[] lineV1 = FrameCodec.encode(Frame.chat(TO, TEXT), Protocol.VERSION_1);
+	byte[] lineV2 = FrameCodec.encode(Frame.chat(TO, TEXT), Protocol.VERSION_2);
+	FrameDecoder decoderV1 = new FrameDecoder(Protocol.VERSION_1);
+	FrameDecoder decoderV2 = new FrameDecoder(Protocol.VERSION_2);
+	FrameDecoder.Handler handler = frame -> sink += frame.arg(1).length();
+
+	//The last round is measured, the others warm up the JIT
+	long split = 0, decodeV1 = 0, decodeV2 = 0, encodeV1 = 0, encodeV2 = 0;
+	for (int round = 0; round < ROUNDS; round++) {
+	    long start = allocated();
+	    for (int i = 0; i < OPS; i++) {
+		sink += splitPath(lineV1).length();
+	    }
+	    split = allocated() - start;
+	    start = allocated();
+	    for (int i = 0; i < OPS; i++) {
+		decoderV1.feed(lineV1, 0, lineV1.length, handler);
+	    }
+	    decodeV1 = allocated() - start;
+	    start = allocated();
+	    for (int i = 0; i < OPS; i++) {
+		decoderV2.feed(lineV2, 0, lineV2.length, handler);
+	    }
+	    decodeV2 = allocated() - start;
+	    start = allocated();
+	    for (int i = 0; i < OPS; i++) {
+		sink += FrameCodec.encode(Frame.chat(FROM, TEXT), Protocol.VERSION_1).length;
+	    }
+	    encodeV1 = allocated() - start;
+	    start = allocated();
+	    for (int i = 0; i < OPS; i++) {
+		sink += FrameCodec.encode(Frame.chat(FROM, TEXT), Protocol.VERSION_2).length;
+	    }
+	    encodeV2 = allocated() - start;
+	}
+	System.out.printf("Bytes per chat message: decode %d with String.split, %d with version 1,"
+		+ " %d with version 2; encode %d with version 1, %d with version 2%n",
+		split / OPS, decodeV1 / OPS, decodeV2 / OPS, encodeV1 / OPS, encodeV2 / OPS);
+	System.out.println(sink == 42 ? "" : "done");
+    }
+
+    /**
+     * The old way to read a chat line, returns the body.
+     */
+    private static String splitPath(byte[] line) {
+	String s = new String(line, 0, line.length - 1, StandardCharsets.UTF_8);
+	String[] parts = s.split(";");
+	StringBuilder body = new StringBuilder();
+	for (int i = 2; i < parts.length; i++) {
+	    if (i > 2) {
+		body.append(";");
+	    }
+	    body.append(parts[i]);
+	}
+	return parts[1] + body;
+    }
+
+    private static long allocated() {
+	return THREADS.getCurrentThreadAllocatedBytes();
+    }
+}
@@ -0,0 +1,87 @@
+package model.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.zip.CRC32;
+
+/**
+ * Measures how the time of a broadcast to every online user goes down with
+ * more {@link FanoutExecutor} lanes, and that the thread that broadcasts only
+ * pays for queueing one task. Not a unit test, run it with the lane counts to
+ * try as arguments, default 1, 2, 4 and so on up to the number of cores.
+ * Every recipient gets a checksum of a frame sized byte array, about the work
+ * of copying a frame into its queue. Prints the mean time until every
+ * recipient has the broadcast, and the mean time of the broadcast call.
+ *
+ * @author Member(1-2-3-4)
+ */
+public class FanoutExecutorBenchmark {
+
+    private static final int RECIPIENTS = 30000;
+    private static final int BROADCASTS = 20;
+    private static final int ROUNDS = 5;
+
+    private static final byte[] FRAME = new byte[256];
+
+    //Keeps the results alive, so the JIT can not remove the work
+    private static volatile long sink;
+
+    private static class Recipient {
+
+	long received;
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+	int cores = Runtime.getRuntime().availableProcessors();
+	List<Integer> counts = new ArrayList<>();
+	if (args.length == 0) {
+	    for (int lanes = 1; lanes < cores; lanes *= 2) {
+		counts.add(lanes);
+	    }
+	    counts.add(cores);
+	}
+	for (String arg : args) {
+	    counts.add(Integer.parseInt(arg));
+	}
+	System.out.println(cores + " cores, " + RECIPIENTS + " recipients");
+	for (int lanes : counts) {
+	    run(lanes);
+	}
+    }
+
+    private static void run(int lanes) throws InterruptedException {
+	List<Recipient> recipients = new ArrayList<>(RECIPIENTS);
+	for (int i = 0; i < RECIPIENTS; i++) {
+	    recipients.add(new Recipient());
+	}
+	FanoutExecutor fanout = new FanoutExecutor(lanes);
+	//The last round is measured, the others warm up the JIT
+	long total = 0, caller = 0;
+	for (int round = 0; round < ROUNDS; round++) {
+	    total = 0;
+	    caller = 0;
+	    for (int b = 0; b < BROADCASTS; b++) {
+		CountDownLatch done = new CountDownLatch(RECIPIENTS);
+		long start = System.nanoTime();
+		fanout.broadcast(recipients, r -> {
+		    CRC32 crc = new CRC32();
+		    crc.update(FRAME);
+		    r.received += crc.getValue();
+		    done.countDown();
+		});
+		caller += System.nanoTime() - start;
+		done.await();
+		total += System.nanoTime() - start;
+	    }
+	}
+	fanout.close();
+	long sum = 0;
+	for (Recipient r : recipients) {
+	    sum += r.received;
+	}
+	sink = sum;
+	System.out.printf("%d lanes: broadcast delivered in %d us, broadcast call %d us%n",
+		lanes, total / BROADCASTS / 1000, caller / BROADCASTS / 1000);
+    }
+}
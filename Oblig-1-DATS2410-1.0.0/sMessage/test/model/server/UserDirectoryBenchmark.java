@@ -0,0 +1,89 @@
+package model.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import model.Status;
+import model.User;
+
+/**
+ * Compares {@link UserDirectory} with the ArrayList the server used before,
+ * where every login and status update walked the list to find the user.
+ * Not a unit test, run it with the user counts to try as arguments, default
+ * 1000 and 10000. Prints the mean time of a lookup and of a status update.
+ *
+ * @author Member(1-2-3-4)
+ */
+public class UserDirectoryBenchmark {
+
+    private static final int OPS = 200000;
+    private static final int ROUNDS = 5;
+
+    //Keeps the results alive, so the JIT can not remove the loops
+    private static int sink;
+
+    public static void main(String[] args) {
+	int[] counts = args.length == 0 ? new int[]{1000, 10000} : new int[args.length];
+	for (int i = 0; i < args.length; i++) {
+	    counts[i] = Integer.parseInt(args[i]);
+	}
+	for (int count : counts) {
+	    run(count);
+	}
+	System.out.println(sink == 42 ? "" : "done");
+    }
+
+    private static void run(int count) {
+	List<User> list = new ArrayList<>(count);
+	UserDirectory directory = new UserDirectory();
+	for (int i = 0; i < count; i++) {
+	    User u = new User("user" + i, "pw", Status.OFFLINE);
+	    list.add(u);
+	    directory.register(u);
+	}
+	//The same random names for both, with their own String objects as from the network
+	Random random = new Random(1);
+	String[] names = new String[OPS];
+	for (int i = 0; i < OPS; i++) {
+	    names[i] = new String("user" + random.nextInt(count));
+	}
+	//The last round is measured, the others warm up the JIT
+	long scanLookup = 0, mapLookup = 0, scanUpdate = 0, mapUpdate = 0;
+	for (int round = 0; round < ROUNDS; round++) {
+	    long start = System.nanoTime();
+	    for (String name : names) {
+		sink += scan(list, name).getUname().length();
+	    }
+	    scanLookup = System.nanoTime() - start;
+	    start = System.nanoTime();
+	    for (String name : names) {
+		sink += directory.get(name).getUname().length();
+	    }
+	    mapLookup = System.nanoTime() - start;
+	    start = System.nanoTime();
+	    for (int i = 0; i < OPS; i++) {
+		scan(list, names[i]).setStatus((i & 1) == 0 ? Status.BUSY : Status.ONLINE);
+	    }
+	    scanUpdate = System.nanoTime() - start;
+	    start = System.nanoTime();
+	    for (int i = 0; i < OPS; i++) {
+		//As Session does it, the user and the change log for delta updates
+		directory.get(names[i]).setStatus((i & 1) == 0 ? Status.BUSY : Status.ONLINE);
+		directory.statusChanged(names[i], (i & 1) == 0 ? "-" : "+");
+	    }
+	    mapUpdate = System.nanoTime() - start;
+	}
+	System.out.printf("%d users: lookup %d ns with ArrayList, %d ns with UserDirectory;"
+		+ " status update %d ns with ArrayList, %d ns with UserDirectory%n",
+		count, scanLookup / OPS, mapLookup / OPS, scanUpdate / OPS, mapUpdate / OPS);
+    }
+
+    private static User scan(List<User> list, String uname) {
+	for (User u : list) {
+	    if (u.getUname().equals(uname)) {
+		return u;
+	    }
+	}
+	return null;
+    }
+}
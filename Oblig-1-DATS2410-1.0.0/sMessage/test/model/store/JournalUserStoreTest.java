@@ -0,0 +1,90 @@
+package model.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests for {@link JournalUserStore}.
+ *
+ * @author Member(1-2-3-4)
+ */
+public class JournalUserStoreTest {
+
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+	dir = Files.createTempDirectory("userstore").toFile();
+    }
+
+    @After
+    public void tearDown() {
+	File[] files = dir.listFiles();
+	if (files != null) {
+	    for (File f : files) {
+		f.delete();
+	    }
+	}
+	dir.delete();
+    }
+
+    /**
+     * An oversized registration in the same batch as valid ones must fail
+     * alone, the valid users are stored and survive a restart.
+     */
+    @Test
+    public void oversizedUserFailsAlone() throws Exception {
+	String huge = new String(new char[JournalUserStore.MAX_FIELD + 1]).replace('\0', 'x');
+	try (JournalUserStore store = new JournalUserStore(dir, null, JournalUserStore.COMPACT_EVERY, false)) {
+	    CompletableFuture<Void> first = store.append("alice", "pw1");
+	    CompletableFuture<Void> big = store.append(huge, "pw2");
+	    CompletableFuture<Void> bigPassword = store.append("carol", huge);
+	    CompletableFuture<Void> last = store.append("bob", "pw3");
+	    first.get();
+	    last.get();
+	    assertFailed(big);
+	    assertFailed(bigPassword);
+	    assertEquals("pw1", store.lookup("alice"));
+	    assertEquals("pw3", store.lookup("bob"));
+	    assertNull(store.lookup(huge));
+	    assertNull(store.lookup("carol"));
+	}
+	try (JournalUserStore store = new JournalUserStore(dir, null, JournalUserStore.COMPACT_EVERY, false)) {
+	    assertEquals(2, store.size());
+	    assertEquals("pw1", store.lookup("alice"));
+	    assertEquals("pw3", store.lookup("bob"));
+	}
+    }
+
+    /**
+     * Characters outside ASCII count as more than one byte.
+     */
+    @Test
+    public void limitCountsBytes() throws Exception {
+	String wide = new String(new char[JournalUserStore.MAX_FIELD / 2 + 1]).replace('\0', 'æ');
+	try (JournalUserStore store = new JournalUserStore(dir, null, JournalUserStore.COMPACT_EVERY, false)) {
+	    assertFailed(store.append(wide, "pw"));
+	    store.append("dave", "pw").get();
+	    assertEquals("pw", store.lookup("dave"));
+	}
+    }
+
+    private static void assertFailed(CompletableFuture<Void> future) throws InterruptedException {
+	try {
+	    future.get();
+	    fail("Oversized user was stored");
+	} catch (ExecutionException e) {
+	    assertTrue(e.getCause() instanceof IOException);
+	}
+    }
+}